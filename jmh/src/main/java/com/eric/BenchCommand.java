@@ -0,0 +1,52 @@
+package com.eric;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import com.beust.jcommander.Parameter;
+
+/**
+ * A command that does nothing itself, for measuring what Command does around
+ * it. Its options are visible to the generated parser.
+ */
+public class BenchCommand extends Command {
+
+	@Parameter(names = { "-n", "--name" })
+	String name;
+
+	@Parameter(names = "--count")
+	int count;
+
+	@Parameter(description = "files")
+	List<String> files;
+
+	/**
+	 * Creates a command that writes to nowhere and doesn't exit the JVM.
+	 */
+	static <T extends Command> T quiet(T cmd) {
+		cmd.stdout = new PrintStream(new NullOutputStream());
+		cmd.stderr = cmd.stdout;
+		cmd.hosted = true;
+		return cmd;
+	}
+
+	@Override
+	protected String getProgramName() {
+		return "bench";
+	}
+
+	@Override
+	protected void run() {
+	}
+
+	static final class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.eric;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Time to decompress a .gz file with ParallelGzipInputStream and with
+ * GZIPInputStream, for a file written as one member, where the parallel one
+ * can't do better and shouldn't do worse, and one written as a member per
+ * chunk, like bgzip does. Run with -prof gc to see the memory it holds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GzipBenchmark {
+
+	@Param({ "single", "multi" })
+	public String members;
+
+	@Param({ "64" })
+	public int megabytes;
+
+	@Param({ "4" })
+	public int threads;
+
+	private Path file;
+
+	@Setup
+	public void setup() throws IOException {
+		file = Files.createTempFile("bench", ".gz");
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < 1 << 20; i++) {
+			sb.append("line ").append(i).append(' ').append(Integer.toHexString(i * 31)).append('\n');
+		}
+
+		byte[] block = sb.toString().getBytes(StandardCharsets.UTF_8);
+		OutputStream out = Files.newOutputStream(file);
+		try {
+			GZIPOutputStream gzip = new GZIPOutputStream(out, 1 << 16);
+			for (int i = 0; i < megabytes; i++) {
+				if (members.equals("multi") && i > 0) {
+					gzip.finish();
+					gzip = new GZIPOutputStream(out, 1 << 16);
+				}
+
+				gzip.write(block);
+			}
+
+			gzip.finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.delete(file);
+	}
+
+	@Benchmark
+	public long parallel() throws IOException {
+		return drain(new ParallelGzipInputStream(FileChannel.open(file), true, threads));
+	}
+
+	@Benchmark
+	public long gzipInputStream() throws IOException {
+		return drain(new GZIPInputStream(Files.newInputStream(file), 1 << 16));
+	}
+
+	private static long drain(InputStream in) throws IOException {
+		try (InputStream i = in) {
+			byte[] buffer = new byte[1 << 16];
+			long total = 0;
+			for (int n = i.read(buffer); n >= 0; n = i.read(buffer)) {
+				total += n;
+			}
+
+			return total;
+		}
+	}
+}
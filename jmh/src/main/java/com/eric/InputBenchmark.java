@@ -0,0 +1,86 @@
+package com.eric;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Time to read a whole input through each of the ways Command offers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InputBenchmark {
+
+	@Param({ "1000", "100000" })
+	public int lines;
+
+	@Param({ "80" })
+	public int width;
+
+	private byte[] input;
+	private Path file;
+	private BenchCommand cmd;
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			for (int j = 0; j < width; j++) {
+				sb.append((char) ('a' + (i + j) % 26));
+			}
+
+			sb.append('\n');
+		}
+
+		input = sb.toString().getBytes(StandardCharsets.UTF_8);
+		file = Files.createTempFile("bench", ".txt");
+		Files.write(file, input);
+		cmd = BenchCommand.quiet(new BenchCommand());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.delete(file);
+	}
+
+	@Benchmark
+	public String systemIn() {
+		cmd.stdin = new ByteArrayInputStream(input);
+		return cmd.systemIn();
+	}
+
+	@Benchmark
+	public long lines() {
+		cmd.stdin = new ByteArrayInputStream(input);
+		return cmd.lines().count();
+	}
+
+	@Benchmark
+	public long rawLines() throws Exception {
+		cmd.stdin = new ByteArrayInputStream(input);
+		long[] count = new long[1];
+		cmd.eachRawLine(line -> count[0] += line.length());
+		return count[0];
+	}
+
+	@Benchmark
+	public long mappedLines() throws Exception {
+		long[] count = new long[1];
+		cmd.eachRawLine(file, line -> count[0] += line.length());
+		return count[0];
+	}
+}
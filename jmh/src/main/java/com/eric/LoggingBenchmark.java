@@ -0,0 +1,70 @@
+package com.eric;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of verbose() with verbose on and off, run with -prof gc. With it off,
+ * gc.alloc.rate.norm should be 0 for everything but the varargs call. With it
+ * on, the message is formatted into the output buffer, which isn't free of
+ * allocation (the arguments are boxed into an array, and the writer wraps
+ * what it encodes), and 'formatted', which builds it with String.format first
+ * like callers used to, is the baseline to compare the others to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoggingBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean enabled;
+
+	private BenchCommand cmd;
+	private String value = "value";
+	private long counter;
+
+	@Setup
+	public void setup() {
+		cmd = BenchCommand.quiet(new BenchCommand());
+		cmd.verbose = enabled;
+	}
+
+	@TearDown
+	public void tearDown() {
+		cmd.flush();
+	}
+
+	@Benchmark
+	public void varargs() {
+		cmd.verbose("record %s %s %s", value, value, value);
+	}
+
+	@Benchmark
+	public void object() {
+		cmd.verbose("record %s", value);
+	}
+
+	@Benchmark
+	public void primitive() {
+		cmd.verbose("record %d", counter++);
+	}
+
+	@Benchmark
+	public void formatted() {
+		cmd.verbose(String.format("record %s %s %s", value, value, value));
+	}
+
+	@Benchmark
+	public void supplier() {
+		cmd.verbose(() -> "record " + value);
+	}
+}
@@ -0,0 +1,57 @@
+package com.eric;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of a line written with out(), against the String.format() it used to
+ * do for every line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OutputBenchmark {
+
+	private BenchCommand cmd;
+	private String value = "value";
+	private Integer number = 123456;
+	private Double real = Math.PI;
+
+	@Setup
+	public void setup() {
+		cmd = BenchCommand.quiet(new BenchCommand());
+	}
+
+	@TearDown
+	public void tearDown() {
+		cmd.flush();
+	}
+
+	@Benchmark
+	public void outString() {
+		cmd.out("line %s", value);
+	}
+
+	@Benchmark
+	public void outDecimal() {
+		cmd.out("line %d of %s", number, value);
+	}
+
+	@Benchmark
+	public void outFloat() {
+		cmd.out("line %.3f", real);
+	}
+
+	@Benchmark
+	public String stringFormat() {
+		return String.format("line %d of %s", number, value);
+	}
+}
@@ -0,0 +1,30 @@
+package com.eric;
+
+import java.util.List;
+
+import com.beust.jcommander.Parameter;
+
+/**
+ * The same options as BenchCommand, but private, so no parser is generated
+ * and JCommander parses them.
+ */
+public class ReflectiveBenchCommand extends Command {
+
+	@Parameter(names = { "-n", "--name" })
+	private String name;
+
+	@Parameter(names = "--count")
+	private int count;
+
+	@Parameter(description = "files")
+	private List<String> files;
+
+	@Override
+	protected String getProgramName() {
+		return "bench";
+	}
+
+	@Override
+	protected void run() {
+	}
+}
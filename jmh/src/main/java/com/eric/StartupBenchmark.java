@@ -0,0 +1,43 @@
+package com.eric;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Steady state cost of Command.main() around run(): creating the command,
+ * parsing, validation and flushing. The generated parser and JCommander are
+ * measured separately. Cold starts aren't measured here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StartupBenchmark {
+
+	private final String[] args = { "--name", "bench", "--count", "3", "-v", "a.txt", "b.txt" };
+
+	@Benchmark
+	public int generatedParser() {
+		return BenchCommand.quiet(new BenchCommand()).execute(args);
+	}
+
+	@Benchmark
+	public int jcommander() {
+		return BenchCommand.quiet(new ReflectiveBenchCommand()).execute(args);
+	}
+
+	@Benchmark
+	public String expandHomeDir() {
+		return new BenchCommand().expandHomeDir("~/some/nested/path.txt");
+	}
+
+	@Benchmark
+	public String expandHomeDirUnchanged() {
+		return new BenchCommand().expandHomeDir("/some/nested/path.txt");
+	}
+}
@@ -0,0 +1,220 @@
+package com.eric;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Buffers output into fixed size blocks that a dedicated thread writes to the
+ * target stream, so the thread producing output never waits on a write
+ * syscall unless it gets a full ring of blocks ahead. Blocks are recycled, and
+ * the queues are only touched once per block rather than once per write.
+ */
+final class AsyncOutputStream extends OutputStream {
+
+	private static final class Block {
+		final byte[] bytes;
+		int length;
+		CountDownLatch flushed;
+
+		Block(int size) {
+			bytes = new byte[size];
+		}
+	}
+
+	private final OutputStream target;
+	private final BlockingQueue<Block> full;
+	private final BlockingQueue<Block> free;
+	private final Thread writer;
+
+	private Block current;
+	private volatile IOException failure;
+	private boolean closed;
+
+	AsyncOutputStream(OutputStream target, int blockSize, int blocks, String name) {
+		this.target = target;
+		this.full = new ArrayBlockingQueue<Block>(blocks + 1);
+		this.free = new ArrayBlockingQueue<Block>(blocks);
+
+		for (int i = 1; i < blocks; i++) {
+			free.add(new Block(blockSize));
+		}
+
+		current = new Block(blockSize);
+		writer = new Thread(this::drain, name);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void drain() {
+		try {
+			while (true) {
+				Block block = full.take();
+				if (block.flushed != null) {
+					flushTarget();
+					block.flushed.countDown();
+					if (block.length < 0) {
+						return;
+					}
+				} else {
+					if (failure == null) {
+						try {
+							target.write(block.bytes, 0, block.length);
+						} catch (IOException e) {
+							failure = e;
+						}
+					}
+
+					block.length = 0;
+					free.add(block);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void flushTarget() {
+		if (failure == null) {
+			try {
+				target.flush();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (current.length == current.bytes.length) {
+			hand();
+		}
+
+		current.bytes[current.length++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (current.length == current.bytes.length) {
+				hand();
+			}
+
+			int n = Math.min(len, current.bytes.length - current.length);
+			System.arraycopy(b, off, current.bytes, current.length, n);
+			current.length += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Queues the current block for the writer thread and takes a free one.
+	 */
+	private void hand() throws IOException {
+		open();
+		check();
+		try {
+			full.put(current);
+			current = free.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Waits until everything written so far has reached the target stream and
+	 * the target has been flushed.
+	 */
+	@Override
+	public void flush() throws IOException {
+		signal(0);
+	}
+
+	/**
+	 * Writes what is left and stops the writer thread, which is stopped even
+	 * if writing failed or the calling thread is interrupted, so it doesn't
+	 * outlive the stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		boolean interrupted = false;
+
+		try {
+			// no point queueing output that can't be written anymore
+			if (current.length > 0 && failure == null) {
+				full.put(current);
+			}
+		} catch (InterruptedException e) {
+			interrupted = true;
+		} finally {
+			Block marker = marker(-1);
+			boolean queued = false;
+			while (marker.flushed.getCount() > 0) {
+				try {
+					if (!queued) {
+						full.put(marker);
+						queued = true;
+					}
+
+					marker.flushed.await();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		check();
+	}
+
+	private void signal(int length) throws IOException {
+		open();
+		if (current.length > 0) {
+			hand();
+		}
+
+		Block marker = marker(length);
+
+		try {
+			full.put(marker);
+			marker.flushed.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		check();
+	}
+
+	private static Block marker(int length) {
+		Block marker = new Block(0);
+		marker.length = length;
+		marker.flushed = new CountDownLatch(1);
+		return marker;
+	}
+
+	private void open() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	private void check() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.eric;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a Command once for every line of a batch file, in one JVM. Each line is
+ * an argument vector, split like a shell would on whitespace, quotes and
+ * backslashes, and appended to the arguments given alongside --batch. Blank
+ * lines and lines starting with '#' are skipped.
+ * 
+ * Every run gets a fresh instance of the command, empty stdin and its own exit
+ * code. With more than one thread, runs happen concurrently and each run's
+ * stdout is buffered so it can be written in batch order.
+ */
+final class Batch {
+
+	/**
+	 * The outcome of one line.
+	 */
+	private static final class Run {
+		final int line;
+		final int code;
+		final ByteArrayOutputStream output;
+
+		Run(int line, int code, ByteArrayOutputStream output) {
+			this.line = line;
+			this.code = code;
+			this.output = output;
+		}
+	}
+
+	private final Class<? extends Command> type;
+	private final List<String> common;
+	private final String source;
+	private final int threads;
+
+	private Batch(Class<? extends Command> type, List<String> common, String source, int threads) {
+		this.type = type;
+		this.common = common;
+		this.source = source;
+		this.threads = threads;
+	}
+
+	/**
+	 * @return the batch described by the --batch and --batch-threads
+	 *         arguments, or null if there is no --batch.
+	 */
+	static Batch of(Class<? extends Command> type, String[] args) {
+		List<String> common = new ArrayList<String>();
+		String source = null;
+		int threads = 1;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--batch")) {
+				source = CommandParser.value(args[i], args, ++i);
+			} else if (args[i].equals("--batch-threads")) {
+				threads = CommandParser.toInt(args[i], CommandParser.value(args[i], args, ++i));
+			} else {
+				common.add(args[i]);
+			}
+		}
+
+		return source == null ? null : new Batch(type, common, source, Math.max(threads, 1));
+	}
+
+	/**
+	 * @return 0 if every run succeeded, otherwise the highest exit code.
+	 */
+	int run() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "batch");
+			t.setDaemon(true);
+			return t;
+		});
+
+		Deque<Future<Run>> pending = new ArrayDeque<Future<Run>>();
+		int worst = 0;
+
+		try (BufferedReader lines = source.equals("-")
+				? new BufferedReader(new InputStreamReader(System.in))
+				: Files.newBufferedReader(Paths.get(source), Charset.defaultCharset())) {
+			int number = 0;
+			for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+				number++;
+				if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+					continue;
+				}
+
+				List<String> args = new ArrayList<String>(common);
+				args.addAll(split(line));
+				int n = number;
+				pending.add(pool.submit(() -> invoke(n, args.toArray(new String[args.size()]))));
+
+				while (pending.size() > threads * 2 && worst != Command.BROKEN_PIPE) {
+					worst = Math.max(worst, finish(pending.remove().get()));
+				}
+
+				if (worst == Command.BROKEN_PIPE) {
+					// stdout is gone, so the remaining runs would be wasted
+					return worst;
+				}
+			}
+
+			while (!pending.isEmpty() && worst != Command.BROKEN_PIPE) {
+				worst = Math.max(worst, finish(pending.remove().get()));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		return worst;
+	}
+
+	private Run invoke(int line, String[] args) throws Exception {
+		Command cmd = Command.create(type);
+		cmd.stdin = new ByteArrayInputStream(new byte[0]);
+		cmd.hosted = true;
+
+		ByteArrayOutputStream buffer = null;
+		if (threads > 1) {
+			buffer = new ByteArrayOutputStream();
+			cmd.stdout = new PrintStream(buffer, false);
+		}
+
+		return new Run(line, cmd.execute(args), buffer);
+	}
+
+	/**
+	 * Writes out a run's buffered output, in batch order.
+	 * 
+	 * @return its exit code.
+	 */
+	private int finish(Run run) throws IOException {
+		if (run.output != null) {
+			run.output.writeTo(System.out);
+			if (System.out.checkError()) {
+				return Command.BROKEN_PIPE;
+			}
+		}
+
+		if (run.code == Command.BROKEN_PIPE) {
+			return run.code;
+		} else if (run.code != 0) {
+			System.err.println("Line " + run.line + " exited with code " + run.code);
+		}
+
+		return run.code;
+	}
+
+	/**
+	 * Splits a line into arguments on unquoted whitespace. Single quotes keep
+	 * everything literally, double quotes and backslashes work like in sh.
+	 */
+	static List<String> split(String line) throws IOException {
+		List<String> args = new ArrayList<String>();
+		StringBuilder arg = new StringBuilder();
+		boolean inArg = false;
+		char quote = 0;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+
+			if (quote == '\'') {
+				if (c == '\'') {
+					quote = 0;
+				} else {
+					arg.append(c);
+				}
+			} else if (c == '\\' && i + 1 < line.length()) {
+				arg.append(line.charAt(++i));
+				inArg = true;
+			} else if (quote == '"') {
+				if (c == '"') {
+					quote = 0;
+				} else {
+					arg.append(c);
+				}
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+				inArg = true;
+			} else if (Character.isWhitespace(c)) {
+				if (inArg) {
+					args.add(arg.toString());
+					arg.setLength(0);
+					inArg = false;
+				}
+			} else {
+				arg.append(c);
+				inArg = true;
+			}
+		}
+
+		if (quote != 0) {
+			throw new IOException("Unterminated quote in: " + line);
+		}
+
+		if (inArg) {
+			args.add(arg.toString());
+		}
+
+		return args;
+	}
+}
@@ -0,0 +1,13 @@
+package com.eric;
+
+/**
+ * An independent validation, see {@link Command#check(Check)}.
+ */
+@FunctionalInterface
+public interface Check {
+
+	/**
+	 * @return a message saying what's wrong, or null if everything is fine.
+	 */
+	String check() throws Exception;
+}
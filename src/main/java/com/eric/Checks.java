@@ -0,0 +1,82 @@
+package com.eric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The checks registered during validation, run all at once. Messages are
+ * reported in the order the checks were registered, whichever finishes first.
+ */
+final class Checks {
+
+	private final List<Check> checks = new ArrayList<Check>();
+
+	void add(Check check) {
+		checks.add(check);
+	}
+
+	/**
+	 * Runs every check as an I/O bound task and adds their messages. With
+	 * 'failFast', the first message cancels the checks still running, and
+	 * only the messages of checks that completed are added. A check cancelled
+	 * any other way, like by another task failing, didn't pass, so that
+	 * failure is thrown.
+	 */
+	void run(Tasks tasks, boolean failFast, Collection<String> messages) throws Exception {
+		String[] results = new String[checks.size()];
+		List<Tasks.Task<?>> running = new ArrayList<Tasks.Task<?>>();
+		AtomicBoolean failed = new AtomicBoolean();
+
+		for (int i = 0; i < results.length && !failed.get(); i++) {
+			Check check = checks.get(i);
+			int index = i;
+			Tasks.Task<?> task = tasks.fork(() -> {
+				results[index] = check.check();
+				if (results[index] != null && failFast && failed.compareAndSet(false, true)) {
+					synchronized (running) {
+						for (Tasks.Task<?> t : running) {
+							t.cancel(true);
+						}
+					}
+				}
+
+				return null;
+			}, false);
+
+			synchronized (running) {
+				running.add(task);
+			}
+
+			if (failed.get()) {
+				task.cancel(true);
+			}
+		}
+
+		for (int i = 0; i < running.size(); i++) {
+			Tasks.Task<?> task = running.get(i);
+			task.await();
+			if (task.isCancelled() && !failed.get()) {
+				tasks.rethrow();
+				throw new CancellationException("A check was cancelled");
+			} else if (!task.isCancelled()) {
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Error) {
+						throw (Error) e.getCause();
+					}
+
+					throw (Exception) e.getCause();
+				}
+			}
+
+			if (results[i] != null) {
+				messages.add(results[i]);
+			}
+		}
+	}
+}
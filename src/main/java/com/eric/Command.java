@@ -1,11 +1,46 @@
 package com.eric;
 
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Scanner;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
 
 /**
  * This class provides some common things I do when creating a command-line
@@ -23,6 +58,71 @@ import com.beust.jcommander.Parameter;
  */
 public abstract class Command {
 
+	/**
+	 * Size of the buffer used when reading system.in.
+	 */
+	protected static final int INPUT_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Size of the buffer behind {@link #out(Object, Object...)}.
+	 */
+	protected static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * The exit code used when stdout is closed by whatever was reading it, the
+	 * same code a shell reports for a process killed by SIGPIPE.
+	 */
+	protected static final int BROKEN_PIPE = 141;
+
+	/**
+	 * System.in as the JVM started with it, used to tell whether it has been
+	 * replaced.
+	 */
+	private static final InputStream STDIN = System.in;
+
+	/**
+	 * System.out as the JVM started with it. Output meant for it is written
+	 * straight to the file descriptor, since a PrintStream hides write errors
+	 * like a broken pipe.
+	 */
+	private static final PrintStream STDOUT = System.out;
+
+	/**
+	 * The parsers generated by com.eric.processor.ParserProcessor, by command
+	 * class.
+	 */
+	private static final ClassValue<Optional<CommandParser<?>>> PARSERS = new ClassValue<Optional<CommandParser<?>>>() {
+		@Override
+		protected Optional<CommandParser<?>> computeValue(Class<?> type) {
+			try {
+				Class<?> parser = Class.forName(type.getName() + "$$Parser", true, type.getClassLoader());
+				return Optional.of((CommandParser<?>) parser.getDeclaredConstructor().newInstance());
+			} catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+				return Optional.empty();
+			}
+		}
+	};
+
+	/**
+	 * Whether a command class overrides {@link #warmUp()}, so a thread is only
+	 * started for the ones that do.
+	 */
+	private static final ClassValue<Boolean> WARMS_UP = new ClassValue<Boolean>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			for (Class<?> c = type; c != Command.class; c = c.getSuperclass()) {
+				try {
+					c.getDeclaredMethod("warmUp");
+					return true;
+				} catch (NoSuchMethodException e) {
+					// keep looking
+				}
+			}
+
+			return false;
+		}
+	};
+
 	@Parameter(names = { "-h", "--help" }, help = true, description = "Displays this help message.")
 	private boolean help;
 
@@ -32,6 +132,85 @@ public abstract class Command {
 	@Parameter(names = "--debug", hidden = true)
 	private boolean debug;
 
+	@Parameter(names = "--threads", description = "Number of threads used to process input.")
+	protected int threads = Runtime.getRuntime().availableProcessors();
+
+	@Parameter(names = "--async-output", hidden = true)
+	private boolean asyncOutput;
+
+	@Parameter(names = "--output", description = "Writes output to this file instead of stdout, gzip compressed if its name ends with .gz.")
+	private String outputFile;
+
+	@Parameter(names = "--incremental", description = "Only handles the input files that changed since the last run with the same options, writing the output saved for the others. The output is saved in a directory named after this state file.")
+	private String incrementalFile;
+
+	@Parameter(names = "--incremental-hash", description = "With --incremental, compares the contents of files rather than their modification times.")
+	private boolean incrementalHash;
+
+	@Parameter(names = "--daemon", description = "Keeps running in the background and serves later invocations of this program, so they skip JVM startup.")
+	private boolean daemon;
+
+	@Parameter(names = "--batch", description = "Runs the program once for each line of this file (- for stdin), each line holding that run's arguments.")
+	private String batch;
+
+	@Parameter(names = "--batch-threads", description = "Number of --batch runs to do at once.")
+	private int batchThreads = 1;
+
+	@Parameter(names = "--profile", hidden = true)
+	private boolean profile;
+
+	@Parameter(names = "--profile-json", hidden = true)
+	private String profileJson;
+
+	// created on first use, by whichever thread writes first
+	private volatile Output output;
+	private boolean brokenPipe;
+	// set while eachFile() runs, to keep each file's output together
+	private MultiInput multiInput;
+	private Profile phases;
+	private Tasks tasks;
+	private Checks checks;
+	private Future<?> warming;
+	// as given to execute(), for telling --incremental runs apart
+	private String[] arguments;
+
+	// set when serving a daemon client, otherwise the System streams are used
+	InputStream stdin;
+	PrintStream stdout;
+	PrintStream stderr;
+	String workingDirectory;
+
+	// when hosted, exit() ends the invocation rather than the JVM
+	boolean hosted;
+
+	/**
+	 * Lifecycle method run on a thread of its own while the arguments are
+	 * parsed and validated, for loading whatever {@link #run()} needs that
+	 * doesn't depend on them, like a large lookup table. Parameters haven't
+	 * been set yet when it starts. It is cancelled if validation fails, and
+	 * run() gets at what it loaded by calling {@link #awaitWarmUp()} first.
+	 */
+	protected void warmUp() throws Exception {
+	}
+
+	/**
+	 * Waits for {@link #warmUp()} to finish, throwing its exception if it
+	 * failed. Whatever it set is visible once this returns.
+	 */
+	protected void awaitWarmUp() throws Exception {
+		if (warming != null) {
+			try {
+				warming.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Error) {
+					throw (Error) e.getCause();
+				}
+
+				throw (Exception) e.getCause();
+			}
+		}
+	}
+
 	/**
 	 * Lifecycle method called before validation. This is a good spot to do any
 	 * parameter conversions that need to happen.
@@ -48,6 +227,30 @@ public abstract class Command {
 	protected void validate(Collection<String> messages) {
 	}
 
+	/**
+	 * Registers a check to be run once {@link #validate(Collection)} returns,
+	 * at the same time as every other registered check, so validation only
+	 * takes as long as the slowest one. Meant for checks that wait on
+	 * something, like files on a network mount. Their messages are shown after
+	 * the ones added directly, in the order the checks were registered. Ex:
+	 * check(() -&gt; Files.isReadable(path) ? null : path + " can't be read")
+	 */
+	protected void check(Check check) {
+		if (checks == null) {
+			checks = new Checks();
+		}
+
+		checks.add(check);
+	}
+
+	/**
+	 * Override to return true to stop validating as soon as a check registered
+	 * with {@link #check(Check)} fails, cancelling the ones still running.
+	 */
+	protected boolean failFast() {
+		return false;
+	}
+
 	/**
 	 * @return the name of the program as displayed in a help message. If using
 	 *         gradle with the application plugin, this should match the
@@ -63,15 +266,171 @@ public abstract class Command {
 	protected abstract void run() throws Exception;
 
 	/**
-	 * Write to System.out
+	 * Write to System.out, or the --output file. Output is buffered, see
+	 * {@link #output()}.
 	 */
 	protected void out(Object format, Object... args) {
-		System.out.println(String.format(format == null ? "null" : format.toString(), args));
+		String f = format == null ? "null" : format.toString();
+		if (multiInput == null) {
+			output0().printf(f, args);
+		} else {
+			multiInput.printf(f, args);
+		}
+	}
+
+	/**
+	 * @return the buffered writer that {@link #out(Object, Object...)} writes
+	 *         to System.out through. Nothing is written until the buffer fills
+	 *         up, {@link #flush()} is called, or the program ends via
+	 *         {@link #exit(int)} or returning from {@link #run()}. When
+	 *         stdout is a terminal, every line is flushed. With the hidden
+	 *         --async-output option, the actual writes happen on a separate
+	 *         thread, as they always do for a compressed --output file.
+	 */
+	protected Writer output() {
+		return output0().writer();
+	}
+
+	private Output output0() {
+		Output o = output;
+		if (o != null) {
+			return o;
+		}
+
+		synchronized (this) {
+			if (output == null && outputFile != null) {
+				output = fileOutput();
+			} else if (output == null) {
+				OutputStream target = stdout();
+				boolean terminal = false;
+				if (target == STDOUT) {
+					STDOUT.flush();
+					target = new FileOutputStream(FileDescriptor.out);
+					terminal = stdoutIsTerminal();
+				}
+
+				output = new Output(target, Charset.defaultCharset(), OUTPUT_BUFFER_SIZE, asyncOutput, terminal,
+						false);
+			}
+
+			return output;
+		}
+	}
+
+	/**
+	 * System.console() is null as soon as stdin is redirected, so something
+	 * like 'grep x file | cmd' would print nothing until it's done. Where
+	 * /proc tells where stdout goes, that is used instead.
+	 */
+	private static boolean stdoutIsTerminal() {
+		try {
+			String target = Files.readSymbolicLink(Paths.get("/proc/self/fd/1")).toString();
+			return target.startsWith("/dev/pts/") || target.startsWith("/dev/tty")
+					|| target.equals("/dev/console");
+		} catch (IOException | UnsupportedOperationException | SecurityException e) {
+			return System.console() != null;
+		}
+	}
+
+	/**
+	 * Opens the --output file. A .gz file is compressed by the writer thread,
+	 * so compressing overlaps with producing the output rather than being
+	 * another pass over it.
+	 */
+	private Output fileOutput() {
+		Path file = Paths.get(getWorkingDirectory()).resolve(expandHomeDir(outputFile));
+		boolean gzip = outputFile.endsWith(".gz");
+
+		try {
+			OutputStream target = new FileOutputStream(file.toFile());
+			if (gzip) {
+				target = new GZIPOutputStream(target, OUTPUT_BUFFER_SIZE);
+			}
+
+			// files are written in bigger blocks than a pipe would take
+			return new Output(target, Charset.defaultCharset(), OUTPUT_BUFFER_SIZE * 16, gzip || asyncOutput, false,
+					true);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to write " + outputFile + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Writes anything buffered by {@link #out(Object, Object...)} to System.out,
+	 * or the --output file.
+	 */
+	protected void flush() {
+		Output o = output;
+		if (o != null) {
+			try {
+				o.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * @return true once writing to stdout has failed, usually because the
+	 *         program reading it has exited (like 'head' does). Anything
+	 *         written after that throws an UncheckedIOException, which ends
+	 *         the program with {@link #BROKEN_PIPE}, but a long running
+	 *         {@link #run()} that writes rarely can check this to stop early.
+	 */
+	protected boolean isOutputClosed() {
+		// failing to write a file is an error like any other
+		Output o = output;
+		return brokenPipe || (o != null && o.isClosed() && outputFile == null);
+	}
+
+	private void println(String text) {
+		if (multiInput == null) {
+			output0().println(text);
+		} else {
+			multiInput.println(text);
+		}
+	}
+
+	/**
+	 * Flushes and releases the output, ending the writer thread if there is
+	 * one, and reporting any problem doing so.
+	 */
+	private void closeOutput() {
+		// a write that failed before has been dealt with already
+		Output o = output;
+		boolean failed = o != null && o.isClosed();
+
+		try {
+			finishOutput();
+		} catch (IOException e) {
+			if (!failed && !brokenPipe) {
+				stderr().println(e.getMessage());
+			}
+		}
+	}
+
+	private void finishOutput() throws IOException {
+		Output o = output;
+		if (o != null) {
+			try {
+				o.close();
+			} finally {
+				brokenPipe = isOutputClosed();
+				output = null;
+			}
+		}
 	}
 
 	/**
 	 * Prints a message to stdout if verbose is true. Ex:
 	 * verbose("The file %s does not exist.", file)
+	 * 
+	 * The fixed arity overloads below avoid creating the varargs array and
+	 * boxing primitives when verbose is off, so prefer them in loops. There is
+	 * one for every primitive type, so each argument is still boxed to its own
+	 * type when the message is printed, and %c or %s of a float come out the
+	 * same as with the varargs version. When verbose is on, a message costs
+	 * what out() does, boxing and all.
 	 */
 	protected void verbose(Object format, Object... args) {
 		if (verbose) {
@@ -79,6 +438,77 @@ public abstract class Command {
 		}
 	}
 
+	protected void verbose(Object format) {
+		if (verbose) {
+			out(format);
+		}
+	}
+
+	protected void verbose(Object format, Object arg) {
+		if (verbose) {
+			out(format, arg);
+		}
+	}
+
+	protected void verbose(Object format, Object arg1, Object arg2) {
+		if (verbose) {
+			out(format, arg1, arg2);
+		}
+	}
+
+	protected void verbose(Object format, byte arg) {
+		if (verbose) {
+			out(format, arg);
+		}
+	}
+
+	protected void verbose(Object format, short arg) {
+		if (verbose) {
+			out(format, arg);
+		}
+	}
+
+	protected void verbose(Object format, char arg) {
+		if (verbose) {
+			out(format, arg);
+		}
+	}
+
+	protected void verbose(Object format, int arg) {
+		if (verbose) {
+			out(format, arg);
+		}
+	}
+
+	protected void verbose(Object format, long arg) {
+		if (verbose) {
+			out(format, arg);
+		}
+	}
+
+	protected void verbose(Object format, float arg) {
+		if (verbose) {
+			out(format, arg);
+		}
+	}
+
+	protected void verbose(Object format, double arg) {
+		if (verbose) {
+			out(format, arg);
+		}
+	}
+
+	/**
+	 * Prints the supplied message, as is, if verbose is true. The supplier is
+	 * only called when it will be printed. Ex: verbose(() -&gt;
+	 * describe(record))
+	 */
+	protected void verbose(Supplier<?> message) {
+		if (verbose) {
+			println(String.valueOf(message.get()));
+		}
+	}
+
 	/**
 	 * Prints a debug message to stdout if debug is true. Ex:
 	 * debug("The file %s does not exist.", file)
@@ -89,6 +519,76 @@ public abstract class Command {
 		}
 	}
 
+	protected void debug(Object format) {
+		if (debug) {
+			out(format);
+		}
+	}
+
+	protected void debug(Object format, Object arg) {
+		if (debug) {
+			out(format, arg);
+		}
+	}
+
+	protected void debug(Object format, Object arg1, Object arg2) {
+		if (debug) {
+			out(format, arg1, arg2);
+		}
+	}
+
+	protected void debug(Object format, byte arg) {
+		if (debug) {
+			out(format, arg);
+		}
+	}
+
+	protected void debug(Object format, short arg) {
+		if (debug) {
+			out(format, arg);
+		}
+	}
+
+	protected void debug(Object format, char arg) {
+		if (debug) {
+			out(format, arg);
+		}
+	}
+
+	protected void debug(Object format, int arg) {
+		if (debug) {
+			out(format, arg);
+		}
+	}
+
+	protected void debug(Object format, long arg) {
+		if (debug) {
+			out(format, arg);
+		}
+	}
+
+	protected void debug(Object format, float arg) {
+		if (debug) {
+			out(format, arg);
+		}
+	}
+
+	protected void debug(Object format, double arg) {
+		if (debug) {
+			out(format, arg);
+		}
+	}
+
+	/**
+	 * Prints the supplied message, as is, if debug is true. The supplier is
+	 * only called when it will be printed.
+	 */
+	protected void debug(Supplier<?> message) {
+		if (debug) {
+			println(String.valueOf(message.get()));
+		}
+	}
+
 	/**
 	 * Write the message to System.err. If 'debug' flag is on, print the stack
 	 * trace to System.err as well.
@@ -97,7 +597,7 @@ public abstract class Command {
 		err("There was a problem, trying running with the --debug option for more details.  %s", message);
 
 		if (debug) {
-			ex.printStackTrace();
+			ex.printStackTrace(stderr());
 		}
 	}
 
@@ -105,37 +605,396 @@ public abstract class Command {
 	 * Write the message to System.err.
 	 */
 	protected void err(Object format, Object... args) {
-		System.err.println(String.format(format == null ? "null" : format.toString(), args));
+		stderr().println(Template.format(format == null ? "null" : format.toString(), args));
 	}
 
 	/**
-	 * Terminates the application with the given exit code.
+	 * Terminates the application with the given exit code. When serving a
+	 * daemon client or running in a batch, only the invocation is ended, by
+	 * throwing an Error that catch (Exception e) lets through. Don't catch
+	 * Throwable or Error around it, or the command keeps running.
 	 */
 	protected void exit(int code) {
-		debug("Exiting with code %s", code);
+		closeTasks();
+
+		if (!isOutputClosed()) {
+			debug("Exiting with code %s", code);
+		}
+
+		closeOutput();
+		profile("exit");
+
+		if (hosted) {
+			throw new Exit(code);
+		}
+
 		System.exit(code);
 	}
 
+	/**
+	 * Runs an I/O bound task, like a download or waiting on a process, on a
+	 * thread of its own. Forked tasks are part of the run: {@link #run()}
+	 * isn't done until they are, the first one to fail cancels the rest and is
+	 * reported like an exception thrown by run(), and {@link #exit(int)}
+	 * cancels whatever is still running. Ex:
+	 * Future&lt;String&gt; page = fork(() -&gt; download(url))
+	 */
+	protected <T> Future<T> fork(Callable<T> task) {
+		return tasks().fork(task, false);
+	}
+
+	/**
+	 * Same as {@link #fork(Callable)}, but for CPU bound tasks, which share a
+	 * pool of {@link #threads} threads.
+	 */
+	protected <T> Future<T> forkCompute(Callable<T> task) {
+		return tasks().fork(task, true);
+	}
+
+	/**
+	 * Waits for every task forked so far and throws the exception of the
+	 * first one that failed, if any. Only needed when {@link #run()} wants the
+	 * results before it returns.
+	 */
+	protected void join() throws Exception {
+		if (tasks != null) {
+			tasks.join();
+		}
+	}
+
+	private synchronized Tasks tasks() {
+		if (tasks == null) {
+			tasks = new Tasks(() -> Math.max(threads, 1));
+		}
+
+		return tasks;
+	}
+
+	/**
+	 * Cancels any forked tasks that are still running and stops their threads.
+	 */
+	private void closeTasks() {
+		Tasks t;
+		synchronized (this) {
+			t = tasks;
+		}
+
+		if (t != null) {
+			t.close();
+		}
+	}
+
 	/**
 	 * Retrieve the current directory.
 	 */
 	public String getWorkingDirectory() {
-		return System.getProperty("user.dir");
+		return workingDirectory == null ? System.getProperty("user.dir") : workingDirectory;
+	}
+
+	private InputStream stdin() {
+		return stdin == null ? System.in : stdin;
+	}
+
+	private PrintStream stdout() {
+		return stdout == null ? System.out : stdout;
+	}
+
+	private PrintStream stderr() {
+		return stderr == null ? System.err : stderr;
 	}
 
 	/**
-	 * @return system.in as a String.
+	 * @return system.in as a String. The whole input is held in memory, so for
+	 *         anything large use {@link #lines()} or {@link #eachLine(Consumer)}
+	 *         instead.
 	 */
 	protected String systemIn() {
-		Scanner sc = new Scanner(System.in);
-		StringBuilder sb = new StringBuilder();
+		try (Stream<String> lines = lines()) {
+			return lines.collect(Collectors.joining());
+		}
+	}
+
+	/**
+	 * @return the lines of system.in as a lazy stream. Lines are read as the
+	 *         stream is consumed, so processing starts with the first line and
+	 *         memory use doesn't depend on the size of the input. Input
+	 *         compressed with gzip or zlib is decompressed as it is read, like
+	 *         it is for every method reading system.in other than
+	 *         {@link #passThrough()}. Lines are decoded with the default
+	 *         charset, like {@link Line#toString()} does.
+	 */
+	protected Stream<String> lines() {
+		try {
+			return new BufferedReader(new InputStreamReader(input(), Charset.defaultCharset()), INPUT_BUFFER_SIZE)
+					.lines();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Hands each line of system.in to the consumer as soon as it is read. Ex:
+	 * eachLine(line -&gt; out(line.toUpperCase()))
+	 */
+	protected void eachLine(Consumer<String> consumer) {
+		try (Stream<String> lines = lines()) {
+			lines.forEach(consumer);
+		}
+	}
+
+	/**
+	 * Hands each line of system.in to the handler as raw bytes, without
+	 * decoding it. This is much faster than {@link #eachLine(Consumer)} for
+	 * filters that only look at part of each line, or only decode some lines
+	 * with {@link Line#toString()}. Ex:
+	 * eachRawLine(line -&gt; { if (line.startsWith("ERROR")) out(line); })
+	 */
+	protected void eachRawLine(LineHandler handler) throws Exception {
+		FileChannel file = systemInFile();
+		each(file == null ? new StreamLineReader(Decompression.open(stdin(), INPUT_BUFFER_SIZE), INPUT_BUFFER_SIZE)
+				: reader(file, false), handler);
+	}
+
+	/**
+	 * Hands every input file to the handler, using {@link #threads} threads.
+	 * Inputs can be files, directories, meaning every file below them, or glob
+	 * patterns like logs/*.gz, relative to the working directory. Each file is
+	 * handled by one thread, and idle threads take over files the others
+	 * haven't got to, so a mix of huge and tiny files stays balanced. What
+	 * {@link #out(Object, Object...)} writes while handling a file is put
+	 * together with the output of other files as 'order' says. The first
+	 * exception thrown by the handler is rethrown once the files already
+	 * started are done. Ex:
+	 * eachFile(files, InputOrder.BY_FILE, file -&gt; eachRawLine(file, line -&gt; ...))
+	 * <p>
+	 * With --incremental, files that haven't changed since the last run aren't
+	 * handled, what was written for them then is written again instead. Only
+	 * what the handler writes on its own thread is saved for that.
+	 */
+	protected void eachFile(Collection<String> inputs, InputOrder order, FileHandler handler) throws Exception {
+		List<String> expanded = new ArrayList<String>();
+		for (String input : inputs) {
+			expanded.add(expandHomeDir(input));
+		}
+
+		Path base = Paths.get(getWorkingDirectory());
+		Incremental incremental = incrementalFile == null ? null
+				: Incremental.load(base.resolve(expandHomeDir(incrementalFile)), incrementalKey(inputs), incrementalHash);
+
+		MultiInput m = new MultiInput(MultiInput.expand(base, expanded, threads), order, output0(), incremental);
+		multiInput = m;
+		try {
+			m.run(handler, Math.max(threads, 1));
+		} catch (Exception e) {
+			if (incremental != null) {
+				// files handled before the failure needn't be handled again
+				try {
+					incremental.save();
+				} catch (IOException saving) {
+					e.addSuppressed(saving);
+				}
+			}
+
+			throw e;
+		} finally {
+			multiInput = null;
+		}
+
+		if (incremental != null) {
+			incremental.save();
+			debug("%s unchanged files skipped", incremental.replayed());
+		}
+	}
+
+	/**
+	 * @return what the output of an --incremental run depends on besides the
+	 *         files themselves: the command and its arguments, leaving out the
+	 *         inputs, whose files are tracked one by one, and options that
+	 *         don't change what is written.
+	 */
+	private String incrementalKey(Collection<String> inputs) {
+		StringBuilder key = new StringBuilder(getClass().getName());
+		String[] args = arguments == null ? new String[0] : arguments;
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "--threads":
+			case "--output":
+			case "--incremental":
+			case "--profile-json":
+				i++;
+				break;
+			case "--incremental-hash":
+			case "--async-output":
+			case "--profile":
+				break;
+			default:
+				if (!inputs.contains(args[i])) {
+					key.append('\0').append(args[i]);
+				}
+			}
+		}
+
+		return key.toString();
+	}
+
+	/**
+	 * Same as {@link #eachFile(Collection, InputOrder, FileHandler)}, with the
+	 * output of each file in the order the files were given.
+	 */
+	protected void eachFile(Collection<String> inputs, FileHandler handler) throws Exception {
+		eachFile(inputs, InputOrder.BY_FILE, handler);
+	}
+
+	/**
+	 * Same as {@link #eachRawLine(LineHandler)}, but reads the given file.
+	 * Regular files are memory mapped rather than read, unless they are
+	 * compressed.
+	 */
+	protected void eachRawLine(Path file, LineHandler handler) throws Exception {
+		if (Files.isRegularFile(file)) {
+			each(reader(FileChannel.open(file, StandardOpenOption.READ), true), handler);
+		} else {
+			each(new StreamLineReader(Decompression.open(Files.newInputStream(file), INPUT_BUFFER_SIZE),
+					INPUT_BUFFER_SIZE), handler);
+		}
+	}
+
+	/**
+	 * @return a reader mapping the file, or decompressing it, using
+	 *         {@link #threads} threads for gzip files with many members.
+	 */
+	private LineReader reader(FileChannel file, boolean closeChannel) throws IOException {
+		if (Decompression.sniff(file) == Decompression.Format.NONE) {
+			return new MappedLineReader(file, closeChannel);
+		}
+
+		return new StreamLineReader(Decompression.open(file, closeChannel, INPUT_BUFFER_SIZE, Math.max(threads, 1)),
+				INPUT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @return system.in, decompressed if need be.
+	 */
+	private InputStream input() throws IOException {
+		FileChannel file = systemInFile();
+		return file == null ? Decompression.open(stdin(), INPUT_BUFFER_SIZE)
+				: Decompression.open(file, false, INPUT_BUFFER_SIZE, Math.max(threads, 1));
+	}
+
+	/**
+	 * Applies the function to every line of system.in using {@link #threads}
+	 * threads, and writes the results to System.out in input order. Ex:
+	 * pipeline(line -&gt; expensiveTransform(line.toString()))
+	 */
+	protected void pipeline(LineFunction function) throws Exception {
+		Pipeline pipeline = new Pipeline(function, output0()::print, Math.max(threads, 1));
+		FileChannel file = systemInFile();
+
+		if (file == null || Decompression.sniff(file) != Decompression.Format.NONE) {
+			try (InputStream in = input()) {
+				pipeline.run(in);
+			}
+		} else {
+			pipeline.run(file);
+		}
+	}
+
+	/**
+	 * Copies the rest of system.in to System.out as is, after anything already
+	 * written by {@link #out(Object, Object...)}. When system.in is a file the
+	 * kernel does the copying (FileChannel.transferTo), otherwise the bytes go
+	 * through a single buffer without being decoded. Don't use this after
+	 * {@link #lines()} or {@link #systemIn()}, since they read ahead.
+	 * 
+	 * @return the number of bytes copied.
+	 */
+	protected long passThrough() throws IOException {
+		return passThrough(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Same as {@link #passThrough()}, but only copies up to 'count' bytes,
+	 * leaving the rest of system.in unread.
+	 */
+	protected long passThrough(long count) throws IOException {
+		FileChannel file = systemInFile();
+		if (file != null) {
+			long n = output0().transfer(file, file.position(), count);
+			file.position(file.position() + n);
+			return n;
+		}
+
+		return output0().transfer(stdinChannel(), count);
+	}
+
+	/**
+	 * Hands the first 'lines' lines of system.in to the handler, like
+	 * {@link #eachRawLine(LineHandler)}, then copies the rest to System.out as
+	 * is, like {@link #passThrough()}. For tools that only touch a header. Ex:
+	 * passThrough(1, header -&gt; out(header.toString().toUpperCase()))
+	 * 
+	 * @return the number of bytes copied after the header.
+	 */
+	protected long passThrough(int lines, LineHandler header) throws Exception {
+		FileChannel file = systemInFile();
+		if (file != null) {
+			try (LineReader reader = new MappedLineReader(file, false)) {
+				head(reader, lines, header);
+			}
+
+			return passThrough();
+		}
 
-		while (sc.hasNextLine()) {
-			sb.append(sc.nextLine());
+		// the header is read from the channel the rest is copied from, since
+		// System.in would keep what it read ahead to itself
+		ReadableByteChannel channel = stdinChannel();
+		StreamLineReader reader = new StreamLineReader(Channels.newInputStream(channel), INPUT_BUFFER_SIZE);
+		head(reader, lines, header);
+
+		// the reader has most likely read past the header already
+		ByteBuffer unread = reader.unread();
+		output0().write(unread.array(), unread.arrayOffset() + unread.position(), unread.remaining());
+		return unread.remaining() + output0().transfer(channel, Long.MAX_VALUE);
+	}
+
+	private void head(LineReader reader, int lines, LineHandler handler) throws Exception {
+		Line line;
+		for (int i = 0; i < lines && (line = reader.next()) != null; i++) {
+			handler.handle(line);
+		}
+	}
+
+	private ReadableByteChannel stdinChannel() {
+		return stdin() == STDIN ? new FileInputStream(FileDescriptor.in).getChannel() : Channels.newChannel(stdin());
+	}
+
+	private void each(LineReader reader, LineHandler handler) throws Exception {
+		try (LineReader r = reader) {
+			for (Line line = r.next(); line != null; line = r.next()) {
+				handler.handle(line);
+			}
+		}
+	}
+
+	/**
+	 * @return a channel positioned at the unread part of system.in when it has
+	 *         been redirected from a non-empty regular file (tool &lt; file),
+	 *         otherwise null. The channel shares the process' stdin, so it
+	 *         shouldn't be closed.
+	 */
+	protected FileChannel systemInFile() {
+		if (stdin() != STDIN) {
+			return null;
 		}
 
-		sc.close();
-		return sb.toString();
+		try {
+			FileChannel channel = new FileInputStream(FileDescriptor.in).getChannel();
+			// pipes, terminals and devices have no size and can't be mapped
+			return channel.size() > channel.position() ? channel : null;
+		} catch (IOException e) {
+			return null;
+		}
 	}
 
 	/**
@@ -146,37 +1005,318 @@ public abstract class Command {
 		return path.replaceFirst("^~", System.getProperty("user.home"));
 	}
 
-	public static void main(Command cmd, String... args) {
-		JCommander jc = new JCommander(cmd);
+	/**
+	 * A directory walker listing directories on {@link #threads} threads, to
+	 * be given globs and such before calling {@link #walk(String, PathWalker, Consumer)}.
+	 */
+	public PathWalker walker() {
+		return new PathWalker(threads);
+	}
+
+	/**
+	 * Hands every file below a directory, relative to the working directory
+	 * and possibly starting with ~, to the consumer as soon as the walker
+	 * finds it. Ex:
+	 * walk("~/logs", walker().include("*.log").maxDepth(2), file -&gt; ...)
+	 */
+	public void walk(String dir, PathWalker walker, Consumer<Path> consumer) throws IOException {
+		walker.walk(Paths.get(getWorkingDirectory()).resolve(expandHomeDir(dir)), consumer);
+	}
 
+	/**
+	 * Runs the command. If a daemon for the command's class is running (see
+	 * the --daemon option), the invocation is forwarded to it instead, along
+	 * with stdin, stdout and stderr. With --batch, the command is run once per
+	 * line of the batch file, each time with a fresh instance created through
+	 * its no-arg constructor.
+	 */
+	public static void main(Command cmd, String... args) {
+		Batch batch;
 		try {
-			jc.setProgramName(cmd.getProgramName());
-			jc.parse(args);
+			batch = Batch.of(cmd.getClass(), args);
+		} catch (ParameterException e) {
+			cmd.err(e.getMessage());
+			cmd.exit(2);
+			return;
+		}
+
+		if (batch != null) {
+			try {
+				int code = batch.run();
+				if (code != 0) {
+					System.exit(code);
+				}
+			} catch (Exception e) {
+				cmd.err(e.getMessage(), e);
+				cmd.exit(2);
+			}
+
+			return;
+		}
 
-			if (cmd.help) {
-				jc.usage();
-			} else {
-				cmd.beforeValidate();
+		if (Arrays.asList(args).contains("--daemon")) {
+			try {
+				new Daemon(cmd.getClass()).serve();
+			} catch (Exception e) {
+				cmd.err(e.getMessage(), e);
+				cmd.exit(2);
+			}
+
+			return;
+		}
 
-				Collection<String> messages = new ArrayList<String>();
-				cmd.validate(messages);
-				if (messages.isEmpty()) {
-					cmd.run();
+		Integer forwarded = DaemonClient.forward(cmd.getClass().getClassLoader(), cmd.getClass().getName(), args);
+		if (forwarded == null) {
+			cmd.execute(args);
+		} else if (forwarded != 0) {
+			System.exit(forwarded);
+		}
+	}
+
+	/**
+	 * Parses the arguments and runs the command in this JVM.
+	 * 
+	 * @return the exit code. Unless hosted, this only returns on success since
+	 *         failures go through {@link #exit(int)}.
+	 */
+	int execute(String... args) {
+		arguments = args;
+		phases = new Profile();
+		tasks = null;
+		checks = null;
+		brokenPipe = false;
+		warming = WARMS_UP.get(getClass()) ? tasks().fork(() -> {
+			warmUp();
+			return null;
+		}, false) : null;
+
+		try {
+			try {
+				JCommander jc = parse(args);
+				phases.mark("parse");
+
+				if (help) {
+					usage(jc);
 				} else {
-					for (String m : messages) {
-						cmd.err(m);
+					beforeValidate();
+					phases.mark("beforeValidate");
+
+					Collection<String> messages = new ArrayList<String>();
+					validate(messages);
+					if (checks != null && !(failFast() && !messages.isEmpty())) {
+						checks.run(tasks(), failFast(), messages);
 					}
 
-					jc.usage();
-					cmd.exit(1);
+					phases.mark("validate");
+
+					if (messages.isEmpty()) {
+						if (outputFile != null) {
+							// opened up front like a shell redirect, so a run
+							// writing nothing still truncates the file, or
+							// leaves a valid empty .gz
+							output0();
+						}
+
+						run();
+						join();
+						phases.mark("run");
+						finishOutput();
+					} else {
+						for (String m : messages) {
+							err(m);
+						}
+
+						usage(jc);
+						exit(1);
+					}
+				}
+			} catch (Exception e) {
+				if (isOutputClosed()) {
+					// nothing is reading anymore, so there's no one to tell
+					exit(BROKEN_PIPE);
+				} else if (e instanceof NullPointerException) {
+					err("There was a problem, trying running with the --debug option for more details.", e);
+					exit(3);
+				} else {
+					err(e.getMessage(), e);
+					exit(2);
 				}
 			}
-		} catch (NullPointerException npe) {
-			cmd.err("There was a problem, trying running with the --debug option for more details.", npe);
-			cmd.exit(3);
-		} catch (Exception e) {
-			cmd.err(e.getMessage(), e);
-			cmd.exit(2);
+
+			return 0;
+		} catch (Exit e) {
+			return e.code;
+		} finally {
+			closeTasks();
+			closeOutput();
+			profile("output");
+		}
+	}
+
+	/**
+	 * Ends profiling with the named phase and reports it, if --profile or
+	 * --profile-json was given. Only the first call does anything.
+	 */
+	private void profile(String phase) {
+		Profile p = phases;
+		phases = null;
+
+		if (p == null || !(profile || profileJson != null)) {
+			return;
+		}
+
+		p.mark(phase);
+
+		if (profile) {
+			stderr().println(p.report());
+		}
+
+		if (profileJson != null) {
+			try {
+				Files.write(Paths.get(getWorkingDirectory()).resolve(profileJson), p.json().getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				stderr().println("Unable to write " + profileJson + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Parses the arguments with the parser generated for this class at build
+	 * time, if there is one. JCommander, and the reflection it does, is only
+	 * used when there isn't, or for help and @file arguments.
+	 * 
+	 * @return the JCommander instance if one was used, otherwise null.
+	 */
+	private JCommander parse(String[] args) {
+		@SuppressWarnings("unchecked")
+		CommandParser<Command> parser = (CommandParser<Command>) PARSERS.get(getClass()).orElse(null);
+
+		for (String arg : args) {
+			if (arg.equals("-h") || arg.equals("--help") || arg.startsWith("@")) {
+				parser = null;
+			}
+		}
+
+		if (parser == null) {
+			JCommander jc = jcommander();
+			jc.parse(args);
+			return jc;
+		}
+
+		Set<String> seen = new HashSet<String>();
+		List<String> values = new ArrayList<String>();
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+
+			if (arg.equals("--")) {
+				values.addAll(Arrays.asList(args).subList(i + 1, args.length));
+				break;
+			} else if (!arg.startsWith("-")) {
+				values.add(arg);
+				continue;
+			}
+
+			int used = option(arg, args, i + 1);
+			if (used < 0) {
+				used = parser.option(this, arg, args, i + 1, seen);
+			}
+
+			if (used < 0) {
+				throw new ParameterException("Unknown option: " + arg);
+			}
+
+			i += used;
+		}
+
+		parser.main(this, values);
+
+		String missing = parser.missing(this, seen);
+		if (missing != null) {
+			throw new ParameterException(missing);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Applies one of the options declared in this class, for generated
+	 * parsers. This has to be kept in line with the @Parameter fields above.
+	 * 
+	 * @return the number of arguments used as the option's value, or -1 if it
+	 *         isn't one of this class' options.
+	 */
+	private int option(String name, String[] args, int next) {
+		switch (name) {
+		case "-v":
+		case "--verbose":
+			verbose = true;
+			return 0;
+		case "--debug":
+			debug = true;
+			return 0;
+		case "--threads":
+			threads = CommandParser.toInt(name, CommandParser.value(name, args, next));
+			return 1;
+		case "--async-output":
+			asyncOutput = true;
+			return 0;
+		case "--output":
+			outputFile = CommandParser.value(name, args, next);
+			return 1;
+		case "--incremental":
+			incrementalFile = CommandParser.value(name, args, next);
+			return 1;
+		case "--incremental-hash":
+			incrementalHash = true;
+			return 0;
+		case "--daemon":
+			daemon = true;
+			return 0;
+		case "--batch":
+			batch = CommandParser.value(name, args, next);
+			return 1;
+		case "--batch-threads":
+			batchThreads = CommandParser.toInt(name, CommandParser.value(name, args, next));
+			return 1;
+		case "--profile":
+			profile = true;
+			return 0;
+		case "--profile-json":
+			profileJson = CommandParser.value(name, args, next);
+			return 1;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * @return a new instance of the command class, for hosted invocations.
+	 */
+	static Command create(Class<? extends Command> type) throws ReflectiveOperationException {
+		Constructor<? extends Command> c = type.getDeclaredConstructor();
+		c.setAccessible(true);
+		return c.newInstance();
+	}
+
+	private JCommander jcommander() {
+		JCommander jc = new JCommander(this);
+		jc.setProgramName(getProgramName());
+		return jc;
+	}
+
+	/**
+	 * Writes the usage message, creating a JCommander for it if parsing didn't
+	 * need one.
+	 */
+	private void usage(JCommander jc) {
+		StringBuilder sb = new StringBuilder();
+		(jc == null ? jcommander() : jc).usage(sb);
+		if (outputFile == null) {
+			output0().println(sb);
+		} else {
+			// not part of what's written to the file
+			stdout().println(sb);
 		}
 	}
-}
\ No newline at end of file
+}
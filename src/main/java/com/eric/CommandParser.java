@@ -0,0 +1,110 @@
+package com.eric;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import com.beust.jcommander.ParameterException;
+
+/**
+ * Parses the options a Command subclass declares, without reflection.
+ * Implementations are generated at build time by
+ * {@link com.eric.processor.ParserProcessor} as a class named after the
+ * command with a "$$Parser" suffix, and Command.main() uses them instead of
+ * JCommander when they exist. The options declared in Command itself are
+ * handled by Command.
+ */
+public interface CommandParser<T extends Command> {
+
+	/**
+	 * Applies an option to the command.
+	 * 
+	 * @param next
+	 *            the index of the argument after the option name.
+	 * @param seen
+	 *            the canonical names of the options applied so far, which this
+	 *            should add to.
+	 * @return the number of arguments used as the option's value, or -1 if the
+	 *         command has no such option.
+	 */
+	int option(T cmd, String name, String[] args, int next, Set<String> seen);
+
+	/**
+	 * Applies the arguments that aren't options.
+	 */
+	void main(T cmd, List<String> values);
+
+	/**
+	 * @return the name of a required option that hasn't been seen, or null if
+	 *         there isn't one.
+	 */
+	String missing(T cmd, Set<String> seen);
+
+	/**
+	 * @return the value for the option at args[next].
+	 */
+	static String value(String name, String[] args, int next) {
+		if (next >= args.length) {
+			throw new ParameterException("Expected a value after parameter " + name);
+		}
+
+		return args[next];
+	}
+
+	static int toInt(String name, String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new ParameterException("\"" + name + "\": couldn't convert \"" + value + "\" to an integer");
+		}
+	}
+
+	static long toLong(String name, String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new ParameterException("\"" + name + "\": couldn't convert \"" + value + "\" to a long");
+		}
+	}
+
+	static double toDouble(String name, String value) {
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new ParameterException("\"" + name + "\": couldn't convert \"" + value + "\" to a double");
+		}
+	}
+
+	static float toFloat(String name, String value) {
+		try {
+			return Float.parseFloat(value);
+		} catch (NumberFormatException e) {
+			throw new ParameterException("\"" + name + "\": couldn't convert \"" + value + "\" to a float");
+		}
+	}
+
+	static boolean toBoolean(String name, String value) {
+		if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+			return Boolean.parseBoolean(value);
+		}
+
+		throw new ParameterException("\"" + name + "\": couldn't convert \"" + value + "\" to a boolean");
+	}
+
+	static <E extends Enum<E>> E toEnum(Class<E> type, String name, String value) {
+		for (E e : type.getEnumConstants()) {
+			if (e.name().equals(value)) {
+				return e;
+			}
+		}
+
+		for (E e : type.getEnumConstants()) {
+			if (e.name().equals(value.toUpperCase())) {
+				return e;
+			}
+		}
+
+		throw new ParameterException(
+				"Invalid value for " + name + " parameter. Allowed values:" + EnumSet.allOf(type));
+	}
+}
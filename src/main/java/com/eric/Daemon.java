@@ -0,0 +1,319 @@
+package com.eric;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a JVM running that serves invocations of a Command forwarded by
+ * {@link DaemonClient}, so they don't pay for JVM startup, class loading and
+ * JIT warm-up. Every invocation gets a fresh instance of the command with its
+ * own stdin, stdout, stderr and exit code, multiplexed over the connection.
+ * 
+ * The daemon listens on the loopback interface and writes its port, a random
+ * token and a fingerprint of its build to a file only the current user can
+ * read. The daemon and the client each prove they know the token, without
+ * sending it, before anything else is exchanged. Both ends send keep-alives
+ * while an invocation runs, so a peer that is gone or stuck is given up on
+ * after {@link #SESSION_TIMEOUT} rather than waited on forever.
+ * 
+ * The client's stdin is only read when the command reads its own, one request
+ * at a time, so an invocation that doesn't read stdin leaves it to whatever
+ * runs next, as the command on its own would.
+ */
+final class Daemon {
+
+	// frames sent to the client: channel byte, then an int length and the
+	// bytes, an int exit code, or the most stdin bytes to send back
+	static final int STDOUT = 1;
+	static final int STDERR = 2;
+	static final int EXIT = 3;
+	static final int KEEPALIVE = 4;
+	static final int READ = 5;
+
+	// the most stdin asked for at once
+	static final int READ_SIZE = 1 << 16;
+
+	static final int NONCE_SIZE = 16;
+	static final int PROOF_SIZE = 32;
+
+	static final int HANDSHAKE_TIMEOUT = 10_000;
+	static final int KEEPALIVE_INTERVAL = 10_000;
+	static final int SESSION_TIMEOUT = 60_000;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final Class<? extends Command> type;
+
+	Daemon(Class<? extends Command> type) {
+		this.type = type;
+	}
+
+	/**
+	 * Serves clients until the JVM is stopped.
+	 */
+	void serve() throws IOException {
+		byte[] random = new byte[16];
+		RANDOM.nextBytes(random);
+		StringBuilder token = new StringBuilder();
+		for (byte b : random) {
+			token.append(String.format("%02x", b));
+		}
+
+		ExecutorService pool = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "daemon-client");
+			t.setDaemon(true);
+			return t;
+		});
+
+		try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			Path file = DaemonClient.rendezvous(type.getName());
+			publish(file, server.getLocalPort() + " " + token + " "
+					+ DaemonClient.fingerprint(type.getClassLoader(), type.getName()));
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> unpublish(file, token.toString())));
+
+			System.err.println("Serving " + type.getName() + " on port " + server.getLocalPort());
+
+			while (true) {
+				Socket socket = server.accept();
+				pool.execute(() -> handle(socket, token.toString()));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static void publish(Path file, String contents) throws IOException {
+		Path dir = file.getParent();
+		try {
+			Set<PosixFilePermission> owner = PosixFilePermissions.fromString("rwx------");
+			Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(owner));
+			// it may have been created before, or with a umask in the way
+			Files.setPosixFilePermissions(dir, owner);
+		} catch (UnsupportedOperationException e) {
+			Files.createDirectories(dir);
+		}
+
+		Files.deleteIfExists(file);
+
+		try {
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			Files.createFile(file);
+		}
+
+		Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void unpublish(Path file, String token) {
+		try {
+			// a newer daemon may have replaced the file
+			String[] contents = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim().split(" ");
+			if (contents.length > 1 && contents[1].equals(token)) {
+				Files.delete(file);
+			}
+		} catch (IOException e) {
+			// nothing to clean up
+		}
+	}
+
+	private void handle(Socket socket, String token) {
+		Thread keepAlive = null;
+
+		try (Socket s = socket) {
+			s.setSoTimeout(HANDSHAKE_TIMEOUT);
+			// reads are a request and an answer, which Nagle would hold back
+			s.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+			byte[] challenge = new byte[NONCE_SIZE];
+			in.readFully(challenge);
+			byte[] nonce = new byte[NONCE_SIZE];
+			RANDOM.nextBytes(nonce);
+			out.write(nonce);
+			out.write(DaemonClient.proof(token, "daemon", challenge, nonce));
+			out.flush();
+
+			byte[] proof = new byte[PROOF_SIZE];
+			in.readFully(proof);
+			if (!MessageDigest.isEqual(proof, DaemonClient.proof(token, "client", challenge, nonce))) {
+				return;
+			}
+
+			String workingDirectory = in.readUTF();
+			String[] args = new String[in.readInt()];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = in.readUTF();
+			}
+
+			// the client's stdin can be quiet for long, but it sends
+			// keep-alives as long as it's there
+			s.setSoTimeout(SESSION_TIMEOUT);
+			keepAlive = new Thread(() -> keepAlive(out), "daemon-keepalive");
+			keepAlive.setDaemon(true);
+			keepAlive.start();
+
+			PrintStream stdout = new PrintStream(new FrameOutputStream(out, STDOUT), false);
+			PrintStream stderr = new PrintStream(new FrameOutputStream(out, STDERR), true);
+			int code;
+
+			try {
+				Command cmd = Command.create(type);
+				cmd.stdin = new FrameInputStream(in, out);
+				cmd.stdout = stdout;
+				cmd.stderr = stderr;
+				cmd.workingDirectory = workingDirectory;
+				cmd.hosted = true;
+				code = cmd.execute(args);
+			} catch (ReflectiveOperationException e) {
+				stderr.println("Unable to create " + type.getName() + ": " + e);
+				code = 2;
+			}
+
+			stdout.flush();
+			stderr.flush();
+
+			synchronized (out) {
+				out.writeByte(EXIT);
+				out.writeInt(code);
+				out.flush();
+			}
+		} catch (IOException e) {
+			System.err.println("Lost client: " + e.getMessage());
+		} finally {
+			if (keepAlive != null) {
+				keepAlive.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Lets the client know the invocation is still running when it has
+	 * nothing to write for a while, until interrupted.
+	 */
+	private static void keepAlive(DataOutputStream out) {
+		try {
+			while (true) {
+				Thread.sleep(KEEPALIVE_INTERVAL);
+				synchronized (out) {
+					out.writeByte(KEEPALIVE);
+					out.flush();
+				}
+			}
+		} catch (IOException | InterruptedException e) {
+			// the invocation is over
+		}
+	}
+
+	/**
+	 * Writes everything to the client as frames on one channel.
+	 */
+	private static final class FrameOutputStream extends OutputStream {
+
+		private final DataOutputStream out;
+		private final int channel;
+
+		FrameOutputStream(DataOutputStream out, int channel) {
+			this.out = out;
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+
+			synchronized (out) {
+				out.writeByte(channel);
+				out.writeInt(len);
+				out.write(b, off, len);
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Reads the client's stdin by asking for it, which then arrives as a
+	 * length prefixed frame, or a negative length at the end. Empty frames
+	 * are the client's keep-alives.
+	 */
+	private static final class FrameInputStream extends InputStream {
+
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		private int remaining;
+		private boolean eof;
+
+		FrameInputStream(DataInputStream in, DataOutputStream out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+
+			if (remaining == 0 && !eof) {
+				synchronized (out) {
+					out.writeByte(READ);
+					out.writeInt(READ_SIZE);
+					out.flush();
+				}
+
+				// skip keep-alives until the answer
+				for (remaining = in.readInt(); remaining == 0; remaining = in.readInt()) {
+				}
+
+				if (remaining < 0) {
+					remaining = 0;
+					eof = true;
+				}
+			}
+
+			if (eof) {
+				return -1;
+			}
+
+			int n = in.read(b, off, Math.min(len, remaining));
+			if (n < 0) {
+				throw new IOException("Client went away");
+			}
+
+			remaining -= n;
+			return n;
+		}
+	}
+}
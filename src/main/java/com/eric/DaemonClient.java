@@ -0,0 +1,331 @@
+package com.eric;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.JarURLConnection;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Forwards an invocation to a running {@link Daemon}. Command.main() does this
+ * automatically, but running this class directly avoids loading the command
+ * and JCommander at all:
+ *
+ * <pre>
+ * java -cp ... com.eric.DaemonClient com.example.MyCommand arg1 arg2
+ * </pre>
+ *
+ * When no daemon is running for the class, or the one running was started
+ * from another build of it, its main method is called in this JVM instead.
+ */
+public final class DaemonClient {
+
+	private DaemonClient() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: DaemonClient <command class> [args...]");
+			System.exit(1);
+		}
+
+		String[] rest = Arrays.copyOfRange(args, 1, args.length);
+		Integer code = forward(DaemonClient.class.getClassLoader(), args[0], rest);
+
+		if (code == null) {
+			Method main = Class.forName(args[0]).getMethod("main", String[].class);
+			main.invoke(null, (Object) rest);
+		} else if (code != 0) {
+			System.exit(code);
+		}
+	}
+
+	/**
+	 * @return the file a daemon serving the given class announces itself in.
+	 */
+	static Path rendezvous(String className) {
+		return Paths.get(System.getProperty("user.home"), ".cli-daemon", className);
+	}
+
+	/**
+	 * @return something that changes whenever the class or this library is
+	 *         rebuilt, going by the size and modification time of the jar or
+	 *         class file they are loaded from, without loading the class.
+	 */
+	static String fingerprint(ClassLoader loader, String className) {
+		StringBuilder sb = new StringBuilder();
+
+		for (String name : new String[] { className, "com.eric.Command" }) {
+			URL url = loader == null ? null : loader.getResource(name.replace('.', '/') + ".class");
+			sb.append(url).append(' ');
+
+			try {
+				if (url != null && url.getProtocol().equals("jar")) {
+					url = ((JarURLConnection) url.openConnection()).getJarFileURL();
+				}
+
+				if (url != null && url.getProtocol().equals("file")) {
+					BasicFileAttributes a = Files.readAttributes(Paths.get(url.toURI()), BasicFileAttributes.class);
+					sb.append(a.size()).append(' ').append(a.lastModifiedTime().toMillis()).append(' ');
+				}
+			} catch (IOException | URISyntaxException | RuntimeException e) {
+				// the location alone will have to do
+			}
+		}
+
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (int i = 0; i < 8; i++) {
+				hex.append(String.format("%02x", digest[i]));
+			}
+
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has to provide it
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Runs the invocation on the daemon serving the class, copying its output
+	 * to this process' stdout and stderr, and this process' stdin to it as the
+	 * command reads it.
+	 * Nothing is sent before the daemon has proven it knows the token in the
+	 * rendezvous file, so whatever else may be listening on its port doesn't
+	 * get to see the invocation.
+	 *
+	 * @return the exit code, or null if there is no daemon to forward to.
+	 */
+	static Integer forward(ClassLoader loader, String className, String[] args) {
+		Path file = rendezvous(className);
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+
+		Socket socket;
+		String token;
+
+		try {
+			// port, token and the fingerprint of the daemon's build
+			String[] contents = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim().split(" ");
+			if (contents.length != 3) {
+				return null;
+			}
+
+			if (!contents[2].equals(fingerprint(loader, className))) {
+				System.err.println("The daemon for " + className + " runs another build, restart it with --daemon.");
+				return null;
+			}
+
+			token = contents[1];
+			socket = new Socket();
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(contents[0])), 1000);
+		} catch (ConnectException e) {
+			// the daemon died without cleaning up
+			stale(file);
+			return null;
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+
+		try (Socket s = socket) {
+			s.setSoTimeout(Daemon.HANDSHAKE_TIMEOUT);
+			s.setTcpNoDelay(true);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+
+			byte[] challenge = new byte[Daemon.NONCE_SIZE];
+			new SecureRandom().nextBytes(challenge);
+			out.write(challenge);
+			out.flush();
+
+			byte[] nonce = new byte[Daemon.NONCE_SIZE];
+			byte[] proof = new byte[Daemon.PROOF_SIZE];
+			try {
+				in.readFully(nonce);
+				in.readFully(proof);
+			} catch (IOException e) {
+				return null;
+			}
+
+			if (!MessageDigest.isEqual(proof, proof(token, "daemon", challenge, nonce))) {
+				// something else got the port after the daemon died
+				stale(file);
+				return null;
+			}
+
+			out.write(proof(token, "client", challenge, nonce));
+			out.writeUTF(System.getProperty("user.dir"));
+			out.writeInt(args.length);
+			for (String arg : args) {
+				out.writeUTF(arg);
+			}
+
+			out.flush();
+			s.setSoTimeout(Daemon.SESSION_TIMEOUT);
+
+			Pump pump = new Pump(System.in, out);
+			Thread reader = new Thread(pump::run, "stdin-forwarder");
+			reader.setDaemon(true);
+			reader.start();
+			Thread keepAlive = new Thread(pump::keepAlive, "stdin-keepalive");
+			keepAlive.setDaemon(true);
+			keepAlive.start();
+
+			byte[] buffer = new byte[1 << 16];
+
+			while (true) {
+				int channel = in.read();
+				if (channel == Daemon.EXIT) {
+					System.out.flush();
+					return in.readInt();
+				} else if (channel == Daemon.KEEPALIVE) {
+					continue;
+				} else if (channel == Daemon.READ) {
+					pump.request(in.readInt());
+					continue;
+				} else if (channel < 0) {
+					throw new IOException("The daemon closed the connection.");
+				}
+
+				int length = in.readInt();
+				if (buffer.length < length) {
+					buffer = new byte[length];
+				}
+
+				in.readFully(buffer, 0, length);
+				PrintStream target = channel == Daemon.STDERR ? System.err : System.out;
+				target.write(buffer, 0, length);
+
+				if (channel == Daemon.STDOUT && target.checkError()) {
+					// whatever read stdout is gone, and closing the connection
+					// makes the daemon's next write fail the same way, so it
+					// stops instead of producing output no one reads
+					return Command.BROKEN_PIPE;
+				}
+			}
+		} catch (IOException e) {
+			System.out.flush();
+			System.err.println("Lost the connection to the daemon: " + e.getMessage());
+			return 2;
+		}
+	}
+
+	/**
+	 * @return an HMAC of the nonces keyed with the token, for one side to show
+	 *         the other it knows the token without sending it.
+	 */
+	static byte[] proof(String token, String side, byte[] challenge, byte[] nonce) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(token.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+			mac.update(side.getBytes(StandardCharsets.UTF_8));
+			mac.update(challenge);
+			return mac.doFinal(nonce);
+		} catch (GeneralSecurityException e) {
+			// every JVM has to provide it
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void stale(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * Answers the daemon's requests for stdin with a length prefixed frame of
+	 * what one read returned, or -1 at the end. Nothing is read before the
+	 * daemon asks, so whatever the command doesn't read is left for the next
+	 * process. An empty frame is sent every so often, so the daemon can tell
+	 * a client with nothing to send from one that is gone.
+	 */
+	private static final class Pump {
+
+		private final InputStream stdin;
+		private final DataOutputStream out;
+		private final BlockingQueue<Integer> requests = new LinkedBlockingQueue<Integer>();
+		private volatile boolean done;
+
+		Pump(InputStream stdin, DataOutputStream out) {
+			this.stdin = stdin;
+			this.out = out;
+		}
+
+		void request(int length) {
+			requests.add(length);
+		}
+
+		void run() {
+			byte[] buffer = new byte[Daemon.READ_SIZE];
+			boolean eof = false;
+
+			try {
+				while (true) {
+					int length = Math.min(requests.take(), buffer.length);
+					int n = eof ? -1 : stdin.read(buffer, 0, Math.max(length, 1));
+					eof = n < 0;
+
+					synchronized (out) {
+						out.writeInt(n);
+						if (n > 0) {
+							out.write(buffer, 0, n);
+						}
+
+						out.flush();
+					}
+				}
+			} catch (IOException | InterruptedException e) {
+				// the invocation is over
+			} finally {
+				done = true;
+			}
+		}
+
+		void keepAlive() {
+			try {
+				while (true) {
+					Thread.sleep(Daemon.KEEPALIVE_INTERVAL);
+					synchronized (out) {
+						if (done) {
+							return;
+						}
+
+						out.writeInt(0);
+						out.flush();
+					}
+				}
+			} catch (IOException | InterruptedException e) {
+				// the invocation is over
+			}
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.eric;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Recognizes gzip and zlib (deflate) compressed input by its first bytes, so
+ * it can be decompressed on the way in rather than by a zcat in front of the
+ * command.
+ * 
+ * Gzip's magic number can't start text, but a zlib header is only two bytes
+ * and "x^" is a valid one, so zlib is only assumed if the start of the input
+ * also inflates without an error.
+ */
+final class Decompression {
+
+	enum Format {
+		NONE, GZIP, ZLIB
+	}
+
+	// how much of the input is inflated to confirm it is zlib
+	private static final int PEEK = 4096;
+
+	private Decompression() {
+	}
+
+	/**
+	 * @param head
+	 *            the first 'length' bytes of the input, up to {@link #PEEK}.
+	 */
+	static Format sniff(byte[] head, int length) {
+		if (length < 2) {
+			return Format.NONE;
+		}
+
+		int b0 = head[0] & 0xff;
+		int b1 = head[1] & 0xff;
+
+		if (b0 == 0x1f && b1 == 0x8b) {
+			return Format.GZIP;
+		}
+
+		if (zlibHeader(b0, b1) && inflates(head, length)) {
+			return Format.ZLIB;
+		}
+
+		return Format.NONE;
+	}
+
+	/**
+	 * The headers zlib itself writes: a 32K window, no preset dictionary, and
+	 * one of the four compression levels.
+	 */
+	private static boolean zlibHeader(int b0, int b1) {
+		return b0 == 0x78 && (b1 == 0x01 || b1 == 0x5e || b1 == 0x9c || b1 == 0xda);
+	}
+
+	private static boolean inflates(byte[] head, int length) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(head, 0, length);
+			byte[] out = new byte[PEEK];
+			while (!inflater.finished() && !inflater.needsInput()) {
+				if (inflater.inflate(out) == 0 && inflater.needsDictionary()) {
+					return false;
+				}
+			}
+
+			return true;
+		} catch (DataFormatException e) {
+			return false;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Looks at the start of the file from its position, without moving it.
+	 */
+	static Format sniff(FileChannel channel) throws IOException {
+		ByteBuffer head = ByteBuffer.allocate(PEEK);
+		long position = channel.position();
+		while (head.hasRemaining() && channel.read(head, position + head.position()) >= 0) {
+			// keep reading
+		}
+
+		return sniff(head.array(), head.position());
+	}
+
+	/**
+	 * @return the stream, decompressing it if it is compressed.
+	 */
+	static InputStream open(InputStream in, int bufferSize) throws IOException {
+		PushbackInputStream pushback = new PushbackInputStream(in, PEEK);
+		byte[] head = new byte[PEEK];
+		int n = fill(pushback, head, 0, 2);
+		// only wait for more when it might be zlib, since a pipe may not have
+		// any more input for a while
+		if (n == 2 && zlibHeader(head[0] & 0xff, head[1] & 0xff)) {
+			n = fill(pushback, head, n, PEEK);
+		}
+
+		pushback.unread(head, 0, n);
+		Format format = sniff(head, n);
+
+		switch (format) {
+		case GZIP:
+			return new GZIPInputStream(pushback, bufferSize);
+		case ZLIB:
+			return new InflaterInputStream(pushback, new Inflater(), bufferSize) {
+				@Override
+				public void close() throws IOException {
+					// only the no-buffer-size constructors end an inflater
+					// they made, and this one holds native memory
+					try {
+						super.close();
+					} finally {
+						inf.end();
+					}
+				}
+			};
+		default:
+			return pushback;
+		}
+	}
+
+	/**
+	 * Reads until there are 'until' bytes in the array, or the input ends.
+	 * 
+	 * @return the number of bytes in the array.
+	 */
+	private static int fill(InputStream in, byte[] head, int n, int until) throws IOException {
+		while (n < until) {
+			int r = in.read(head, n, until - n);
+			if (r < 0) {
+				break;
+			}
+
+			n += r;
+		}
+
+		return n;
+	}
+
+	/**
+	 * @return the rest of the file, decompressing it if it is compressed. Gzip
+	 *         files made of many members are decompressed on 'threads'
+	 *         threads, if there is more than one. The channel is only closed
+	 *         along with the stream if 'closeChannel' is set.
+	 */
+	static InputStream open(FileChannel channel, boolean closeChannel, int bufferSize, int threads)
+			throws IOException {
+		if (threads > 1 && sniff(channel) == Format.GZIP) {
+			return new ParallelGzipInputStream(channel, closeChannel, threads);
+		}
+
+		InputStream in = Channels.newInputStream(channel);
+		return open(closeChannel ? in : new FilterInputStream(in) {
+			@Override
+			public void close() {
+				// the channel belongs to someone else
+			}
+		}, bufferSize);
+	}
+}
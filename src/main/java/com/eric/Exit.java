@@ -0,0 +1,18 @@
+package com.eric;
+
+/**
+ * Thrown by Command.exit() when the command is hosted in a longer running JVM,
+ * so that exiting ends the invocation instead of the process. It is an Error,
+ * like ThreadDeath, so the command's own catch (Exception e) doesn't stop it.
+ */
+final class Exit extends Error {
+
+	private static final long serialVersionUID = 1L;
+
+	final int code;
+
+	Exit(int code) {
+		super("exit " + code, null, false, false);
+		this.code = code;
+	}
+}
@@ -0,0 +1,18 @@
+package com.eric;
+
+import java.nio.file.Path;
+
+/**
+ * Processes one input file, see
+ * {@link Command#eachFile(java.util.Collection, InputOrder, FileHandler)}.
+ */
+@FunctionalInterface
+public interface FileHandler {
+
+	/**
+	 * Called once per file, on any of the worker threads. Output written with
+	 * Command.out() while handling the file is kept together according to the
+	 * {@link InputOrder}.
+	 */
+	void handle(Path file) throws Exception;
+}
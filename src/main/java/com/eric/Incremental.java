@@ -0,0 +1,351 @@
+package com.eric;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The state behind --incremental: the size, modification time and optionally
+ * a hash of every input file handled by the last run. What was written while
+ * handling a file is kept in a file of its own, in a directory next to the
+ * state file. A file that hasn't changed since isn't handled again, its saved
+ * output is written instead, so only the output of the files that are
+ * replayed is ever read back.
+ *
+ * The state is only used by a run of the same command with the same options,
+ * since those can change the output.
+ */
+final class Incremental {
+
+	private static final String MAGIC = "com.eric.Incremental";
+	private static final int VERSION = 2;
+
+	private final Path stateFile;
+	private final Path cache;
+	private final String key;
+	private final boolean hash;
+	private final Map<String, Entry> previous;
+	private final Map<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+	private final AtomicInteger replayed = new AtomicInteger();
+	private final AtomicInteger recordings = new AtomicInteger();
+
+	private Incremental(Path stateFile, String key, boolean hash, Map<String, Entry> previous) {
+		this.stateFile = stateFile;
+		this.cache = stateFile.resolveSibling(stateFile.getFileName() + ".cache");
+		this.key = key;
+		this.hash = hash;
+		this.previous = previous;
+	}
+
+	/**
+	 * Reads the state left by the last run with the same key, usually the
+	 * command class and its options. A state file that is missing, unreadable
+	 * or written with another key just means every file is handled.
+	 *
+	 * @param hash
+	 *            whether to tell files apart by their contents rather than
+	 *            their modification time, for files copied without it.
+	 */
+	static Incremental load(Path stateFile, String key, boolean hash) {
+		Map<String, Entry> previous = new HashMap<String, Entry>();
+		// arguments can be longer than writeUTF allows
+		key = hex(key);
+
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(Files.newInputStream(stateFile))))) {
+			if (in.readUTF().equals(MAGIC) && in.readInt() == VERSION && in.readUTF().equals(key)) {
+				for (int n = in.readInt(); n > 0; n--) {
+					Entry e = Entry.read(in);
+					previous.put(e.path, e);
+				}
+			}
+		} catch (IOException e) {
+			// start over, the worst that can happen is handling every file
+			previous.clear();
+		}
+
+		return new Incremental(stateFile, key, hash, previous);
+	}
+
+	/**
+	 * @return the file as it is now, to be passed to the other methods.
+	 */
+	Entry examine(Path file) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		return new Entry(file.toAbsolutePath().normalize().toString(), attributes.size(),
+				attributes.lastModifiedTime().toMillis(), hash ? hash(file) : null);
+	}
+
+	/**
+	 * Writes what was written for the file last time, if it hasn't changed
+	 * since and that output is still there.
+	 *
+	 * @return false if the file has to be handled.
+	 */
+	boolean replay(Entry now, OutputStream to) throws IOException {
+		Entry last = previous.get(now.path);
+		if (last == null || last.size != now.size) {
+			return false;
+		}
+
+		boolean same = now.hash != null && last.hash != null ? Arrays.equals(now.hash, last.hash)
+				: now.modified == last.modified;
+		if (!same) {
+			return false;
+		}
+
+		byte[] output;
+		try {
+			output = Files.readAllBytes(cached(now));
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+
+		to.write(output);
+		current.put(now.path, now);
+		replayed.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Starts saving what is written while handling the file.
+	 */
+	Recording record(Entry now) throws IOException {
+		Path temp = cache.resolve(now.name() + "." + recordings.incrementAndGet() + ".tmp");
+		try {
+			Files.createDirectories(cache);
+			return new Recording(now, temp);
+		} catch (IOException e) {
+			throw unableToWrite(temp, e);
+		}
+	}
+
+	/**
+	 * @return the number of files whose output was replayed.
+	 */
+	int replayed() {
+		return replayed.get();
+	}
+
+	/**
+	 * Replaces the state file with the files handled or replayed by this run,
+	 * and deletes the output saved for any others. Files that weren't handled,
+	 * because they failed or are no longer inputs, are left out so the next run
+	 * handles them. It is written next to the state file first, so a run that
+	 * dies part way leaves the old one in place.
+	 */
+	void save() throws IOException {
+		Path temp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))))) {
+				out.writeUTF(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(key);
+				out.writeInt(current.size());
+				for (Entry e : current.values()) {
+					e.write(out);
+				}
+			}
+
+			Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw unableToWrite(stateFile, e);
+		}
+
+		clean();
+	}
+
+	private static IOException unableToWrite(Path file, IOException e) {
+		String reason = e instanceof NoSuchFileException ? "No such directory" : e.getMessage();
+		return new IOException("Unable to write " + file + ": " + reason, e);
+	}
+
+	/**
+	 * Deletes the saved output no longer in the state.
+	 */
+	private void clean() throws IOException {
+		if (!Files.isDirectory(cache)) {
+			return;
+		}
+
+		Set<String> kept = new HashSet<String>();
+		for (Entry e : current.values()) {
+			kept.add(e.name());
+		}
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(cache)) {
+			for (Path file : files) {
+				if (!kept.contains(file.getFileName().toString())) {
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+	}
+
+	private Path cached(Entry e) {
+		return cache.resolve(e.name());
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has to provide it
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the SHA-256 of the text, in hex.
+	 */
+	private static String hex(String text) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : sha256().digest(text.getBytes(StandardCharsets.UTF_8))) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+
+		return sb.toString();
+	}
+
+	private static byte[] hash(Path file) throws IOException {
+		MessageDigest digest = sha256();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(Command.INPUT_BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+
+		return digest.digest();
+	}
+
+	/**
+	 * The output of one file being handled, written to a temporary file that
+	 * only replaces the saved output once the file was handled successfully.
+	 */
+	final class Recording {
+		private final Entry entry;
+		private final Path temp;
+		private final OutputStream out;
+		private IOException failure;
+
+		private Recording(Entry entry, Path temp) throws IOException {
+			this.entry = entry;
+			this.temp = temp;
+			this.out = new BufferedOutputStream(Files.newOutputStream(temp), Command.OUTPUT_BUFFER_SIZE);
+		}
+
+		void write(byte[] b, int off, int len) {
+			if (failure == null && len > 0) {
+				try {
+					out.write(b, off, len);
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+		}
+
+		/**
+		 * Keeps the output for the next run if 'handled', otherwise throws it
+		 * away.
+		 */
+		void end(boolean handled) throws IOException {
+			try {
+				out.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+
+			if (handled && failure == null) {
+				Files.move(temp, cached(entry), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				current.put(entry.path, entry);
+			} else {
+				Files.deleteIfExists(temp);
+			}
+
+			if (failure != null) {
+				throw unableToWrite(temp, failure);
+			}
+		}
+	}
+
+	static final class Entry {
+		final String path;
+		final long size;
+		final long modified;
+		final byte[] hash;
+
+		Entry(String path, long size, long modified, byte[] hash) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+		}
+
+		/**
+		 * @return the name of the file its output is saved in.
+		 */
+		String name() {
+			return hex(path);
+		}
+
+		static Entry read(DataInputStream in) throws IOException {
+			return new Entry(in.readUTF(), in.readLong(), in.readLong(), bytes(in));
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeUTF(path);
+			out.writeLong(size);
+			out.writeLong(modified);
+			bytes(out, hash);
+		}
+
+		private static byte[] bytes(DataInputStream in) throws IOException {
+			int length = in.readInt();
+			if (length < 0) {
+				return null;
+			}
+
+			byte[] b = new byte[length];
+			in.readFully(b);
+			return b;
+		}
+
+		private static void bytes(DataOutputStream out, byte[] b) throws IOException {
+			out.writeInt(b == null ? -1 : b.length);
+			if (b != null) {
+				out.write(b);
+			}
+		}
+	}
+}
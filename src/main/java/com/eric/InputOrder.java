@@ -0,0 +1,24 @@
+package com.eric;
+
+/**
+ * How the output of files processed at the same time is put together.
+ */
+public enum InputOrder {
+
+	/**
+	 * Each file's output in one piece, in the order the files were given.
+	 * Output of files that finish early is held in memory until it's their
+	 * turn.
+	 */
+	BY_FILE,
+
+	/**
+	 * Each file's output in one piece, in the order the files finish.
+	 */
+	COMPLETION,
+
+	/**
+	 * Lines as soon as they are written, mixed with those of other files.
+	 */
+	INTERLEAVED
+}
@@ -0,0 +1,137 @@
+package com.eric;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A single line of raw input, as a view onto the buffer it was read into. No
+ * bytes are copied or decoded until something like {@link #toString()} asks
+ * for it.
+ * 
+ * Instances are reused by the reader that produced them, so a Line is only
+ * valid until the next line is read. Use {@link #copy()} to hold on to one.
+ */
+public final class Line {
+
+	private ByteBuffer buffer;
+	private int offset;
+	private int length;
+
+	Line() {
+	}
+
+	Line(ByteBuffer buffer, int offset, int length) {
+		set(buffer, offset, length);
+	}
+
+	void set(ByteBuffer buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * @return the buffer holding the line's bytes. The line starts at
+	 *         {@link #offset()} and does not include the line terminator.
+	 */
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	public int offset() {
+		return offset;
+	}
+
+	/**
+	 * @return the number of bytes in the line, not including the terminator.
+	 */
+	public int length() {
+		return length;
+	}
+
+	public boolean isEmpty() {
+		return length == 0;
+	}
+
+	public byte byteAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+		}
+
+		return buffer.get(offset + index);
+	}
+
+	/**
+	 * @return the index of the first occurrence of the given byte at or after
+	 *         'from', or -1.
+	 */
+	public int indexOf(int b, int from) {
+		for (int i = Math.max(from, 0); i < length; i++) {
+			if (buffer.get(offset + i) == (byte) b) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	public int indexOf(int b) {
+		return indexOf(b, 0);
+	}
+
+	/**
+	 * Compares the start of the line to an ASCII prefix without decoding it.
+	 */
+	public boolean startsWith(String prefix) {
+		if (prefix.length() > length) {
+			return false;
+		}
+
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buffer.get(offset + i) != (byte) prefix.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the bytes of the line in a new array.
+	 */
+	public byte[] toBytes() {
+		byte[] bytes = new byte[length];
+		ByteBuffer dup = buffer.duplicate();
+		dup.position(offset);
+		dup.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return a copy of this line that is not affected by further reads.
+	 */
+	public Line copy() {
+		return new Line(ByteBuffer.wrap(toBytes()), 0, length);
+	}
+
+	/**
+	 * @return the line decoded with the given charset.
+	 */
+	public String toString(Charset charset) {
+		if (buffer.hasArray()) {
+			return new String(buffer.array(), buffer.arrayOffset() + offset, length, charset);
+		}
+
+		return new String(toBytes(), charset);
+	}
+
+	/**
+	 * @return the line decoded with the default charset, the same one
+	 *         Command.lines() decodes system.in with, so both give the same
+	 *         text for the same bytes.
+	 */
+	@Override
+	public String toString() {
+		return toString(Charset.defaultCharset());
+	}
+}
@@ -0,0 +1,16 @@
+package com.eric;
+
+/**
+ * Transforms one line of input into one line of output, see
+ * {@link Command#pipeline(LineFunction)}. Implementations are called from
+ * several threads at once, so they must not share mutable state.
+ */
+@FunctionalInterface
+public interface LineFunction {
+
+	/**
+	 * @return the output for the line, or null to drop it. The line is only
+	 *         valid for the duration of the call.
+	 */
+	CharSequence apply(Line line) throws Exception;
+}
@@ -0,0 +1,14 @@
+package com.eric;
+
+/**
+ * Receives raw lines of input, see {@link Command#eachRawLine(LineHandler)}.
+ */
+@FunctionalInterface
+public interface LineHandler {
+
+	/**
+	 * Called once per line. The line is only valid for the duration of the
+	 * call.
+	 */
+	void handle(Line line) throws Exception;
+}
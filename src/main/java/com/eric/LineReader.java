@@ -0,0 +1,54 @@
+package com.eric;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits input into lines without decoding it. Lines end with '\n' or "\r\n",
+ * and the final line doesn't need a terminator.
+ */
+abstract class LineReader implements Closeable {
+
+	protected final Line line = new Line();
+
+	/**
+	 * @return the next line, or null at the end of the input. The same Line
+	 *         instance is returned every time.
+	 */
+	abstract Line next() throws IOException;
+
+	/**
+	 * @return the index of the first '\n' in buffer[from, to), or -1.
+	 */
+	static int indexOfNewline(ByteBuffer buffer, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buffer.get(i) == '\n') {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return the index of the last '\n' in buffer[from, to), or -1.
+	 */
+	static int lastIndexOfNewline(ByteBuffer buffer, int from, int to) {
+		for (int i = to - 1; i >= from; i--) {
+			if (buffer.get(i) == '\n') {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Points 'line' at buffer[start, newline), dropping a trailing '\r'.
+	 */
+	static void terminate(Line line, ByteBuffer buffer, int start, int newline) {
+		int end = newline > start && buffer.get(newline - 1) == '\r' ? newline - 1 : newline;
+		line.set(buffer, start, end - start);
+	}
+}
@@ -0,0 +1,102 @@
+package com.eric;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Reads lines from a regular file by memory mapping it, so the bytes are never
+ * copied out of the page cache. The file is mapped in segments that always end
+ * on a line boundary, which also makes them independent units of work for
+ * processing in parallel.
+ */
+final class MappedLineReader extends LineReader {
+
+	/**
+	 * Preferred size of a mapped segment.
+	 */
+	static final int SEGMENT_SIZE = 1 << 28;
+
+	private final FileChannel channel;
+	private final long end;
+	private final boolean closeChannel;
+
+	private long next;
+	private ByteBuffer segment;
+	private int pos;
+
+	/**
+	 * Reads channel from its current position to its end. The channel is only
+	 * closed if 'closeChannel' is set, otherwise it is left positioned just
+	 * after the last line returned.
+	 */
+	MappedLineReader(FileChannel channel, boolean closeChannel) throws IOException {
+		this.channel = channel;
+		this.next = channel.position();
+		this.end = channel.size();
+		this.closeChannel = closeChannel;
+	}
+
+	@Override
+	Line next() throws IOException {
+		while (segment == null || pos == segment.limit()) {
+			if (next >= end) {
+				return null;
+			}
+
+			segment = segment(channel, next, end, SEGMENT_SIZE);
+			next += segment.limit();
+			pos = 0;
+		}
+
+		int newline = indexOfNewline(segment, pos, segment.limit());
+		if (newline < 0) {
+			// only the last segment of the file can end without a newline
+			line.set(segment, pos, segment.limit() - pos);
+			pos = segment.limit();
+		} else {
+			terminate(line, segment, pos, newline);
+			pos = newline + 1;
+		}
+
+		return line;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closeChannel) {
+			channel.close();
+		} else {
+			channel.position(segment == null ? next : next - segment.limit() + pos);
+		}
+	}
+
+	/**
+	 * Maps the part of the file starting at 'start', ending just after the last
+	 * newline within roughly 'size' bytes, or at 'end'. The mapping is only
+	 * extended past 'size' when a single line is longer than that.
+	 */
+	static ByteBuffer segment(FileChannel channel, long start, long end, int size) throws IOException {
+		long length = Math.min(size, end - start);
+
+		while (true) {
+			ByteBuffer mapped = channel.map(MapMode.READ_ONLY, start, length);
+			if (start + length == end) {
+				return mapped;
+			}
+
+			int newline = lastIndexOfNewline(mapped, 0, mapped.limit());
+			if (newline >= 0) {
+				mapped.limit(newline + 1);
+				return mapped.slice();
+			}
+
+			if (length >= Integer.MAX_VALUE - 1) {
+				throw new IOException("Line at offset " + start + " is too long to map.");
+			}
+
+			length = Math.min(Math.min(length * 2, Integer.MAX_VALUE - 1), end - start);
+		}
+	}
+}
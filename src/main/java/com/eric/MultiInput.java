@@ -0,0 +1,317 @@
+package com.eric;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Processes many files at once on a work stealing pool, so a few huge files
+ * among many small ones don't leave threads idle. While it runs, what the
+ * workers print goes to a buffer per file, which is merged into the shared
+ * output according to the InputOrder.
+ */
+final class MultiInput {
+
+	private final List<Path> files;
+	private final InputOrder order;
+	private final Output shared;
+	// set with --incremental
+	private final Incremental incremental;
+	private final ThreadLocal<Slot> current = new ThreadLocal<Slot>();
+	private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+	// for BY_FILE, the output of files that finished before their turn
+	private final Bytes[] finished;
+	private int next;
+
+	MultiInput(List<Path> files, InputOrder order, Output shared, Incremental incremental) {
+		this.files = files;
+		this.order = order;
+		this.shared = shared;
+		this.incremental = incremental;
+		this.finished = order == InputOrder.BY_FILE ? new Bytes[files.size()] : null;
+	}
+
+	/**
+	 * Runs the handler for every file on 'threads' threads, throwing the
+	 * first exception any of them threw. Files not started yet by then are
+	 * skipped.
+	 */
+	void run(FileHandler handler, int threads) throws Exception {
+		if (files.isEmpty()) {
+			return;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new Split(handler, 0, files.size()));
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+
+	/**
+	 * Splits the files in halves until there's one, so idle workers can take
+	 * over the half another hasn't got to yet.
+	 */
+	private final class Split extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileHandler handler;
+		private final int from;
+		private final int to;
+
+		Split(FileHandler handler, int from, int to) {
+			this.handler = handler;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				handle(handler, from);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Split(handler, from, middle), new Split(handler, middle, to));
+			}
+		}
+	}
+
+	private void handle(FileHandler handler, int index) {
+		Slot slot = new Slot(index);
+		current.set(slot);
+		boolean handled = false;
+
+		try {
+			if (failure.get() == null) {
+				handle(handler, files.get(index), slot);
+				handled = true;
+			}
+		} catch (Exception e) {
+			failure.compareAndSet(null, e);
+		} finally {
+			current.remove();
+			finish(slot);
+		}
+
+		if (slot.recording != null) {
+			try {
+				slot.recording.end(handled);
+			} catch (IOException e) {
+				failure.compareAndSet(null, e);
+			}
+		}
+	}
+
+	private void handle(FileHandler handler, Path file, Slot slot) throws Exception {
+		if (incremental == null) {
+			handler.handle(file);
+			return;
+		}
+
+		Incremental.Entry entry = incremental.examine(file);
+		if (!incremental.replay(entry, slot.bytes)) {
+			slot.recording = incremental.record(entry);
+			handler.handle(file);
+		}
+	}
+
+	/**
+	 * Formats a line into the current file's buffer, or straight to the
+	 * shared output from any other thread.
+	 */
+	void printf(String format, Object... args) {
+		Slot slot = current.get();
+		if (slot == null) {
+			synchronized (shared) {
+				shared.printf(format, args);
+			}
+		} else {
+			slot.output.printf(format, args);
+			slot.line();
+		}
+	}
+
+	void println(CharSequence text) {
+		Slot slot = current.get();
+		if (slot == null) {
+			synchronized (shared) {
+				shared.println(text);
+			}
+		} else {
+			slot.output.println(text);
+			slot.line();
+		}
+	}
+
+	private void finish(Slot slot) {
+		try {
+			slot.output.flush();
+		} catch (IOException e) {
+			// it only writes to memory
+		}
+
+		slot.record();
+		if (order == InputOrder.BY_FILE) {
+			synchronized (this) {
+				finished[slot.index] = slot.bytes;
+				for (; next < finished.length && finished[next] != null; next++) {
+					write(finished[next]);
+					finished[next] = null;
+				}
+			}
+		} else {
+			write(slot.bytes);
+		}
+	}
+
+	private void write(Bytes bytes) {
+		if (bytes.size() == 0) {
+			return;
+		}
+
+		try {
+			synchronized (shared) {
+				shared.write(bytes.array(), 0, bytes.size());
+			}
+		} catch (IOException e) {
+			failure.compareAndSet(null, e);
+		} finally {
+			bytes.reset();
+		}
+	}
+
+	/**
+	 * What's being written for the file a worker is handling.
+	 */
+	private final class Slot {
+		final int index;
+		final Bytes bytes = new Bytes();
+		final Output output = new Output(bytes, Charset.defaultCharset(), 8192, false, false, false);
+		// saves what's written for the file, with --incremental
+		Incremental.Recording recording;
+
+		Slot(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * Called after every line, to pass it on right away when interleaving.
+		 */
+		void line() {
+			if (order == InputOrder.INTERLEAVED) {
+				try {
+					output.flush();
+				} catch (IOException e) {
+					// it only writes to memory
+				}
+
+				record();
+				write(bytes);
+			}
+		}
+
+		void record() {
+			if (recording != null) {
+				recording.write(bytes.array(), 0, bytes.size());
+			}
+		}
+	}
+
+	private static final class Bytes extends ByteArrayOutputStream {
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	/**
+	 * Turns files, directories (everything below them) and glob patterns into
+	 * a list of files. Relative paths are resolved against 'base', and
+	 * directories are walked on 'threads' threads.
+	 */
+	static List<Path> expand(Path base, Collection<String> inputs, int threads) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+
+		for (String input : inputs) {
+			Path path = base.resolve(input);
+
+			if (Files.isDirectory(path)) {
+				files.addAll(walk(path, new PathWalker(threads)));
+			} else if (Files.exists(path) || !isGlob(input)) {
+				if (!Files.exists(path)) {
+					throw new NoSuchFileException(input, null, "No such file");
+				}
+
+				files.add(path);
+			} else {
+				List<Path> matches = glob(base, input, threads);
+				if (matches.isEmpty()) {
+					throw new NoSuchFileException(input, null, "No files match");
+				}
+
+				files.addAll(matches);
+			}
+		}
+
+		return files;
+	}
+
+	/**
+	 * @return the files the walker finds, sorted, since it finds them in no
+	 *         particular order.
+	 */
+	private static List<Path> walk(Path dir, PathWalker walker) throws IOException {
+		List<Path> found = new ArrayList<Path>();
+		walker.walk(dir, found::add);
+		Collections.sort(found);
+		return found;
+	}
+
+	static boolean isGlob(String input) {
+		return input.indexOf('*') >= 0 || input.indexOf('?') >= 0 || input.indexOf('[') >= 0
+				|| input.indexOf('{') >= 0;
+	}
+
+	/**
+	 * Matches the pattern below the last directory before any wildcard.
+	 */
+	private static List<Path> glob(Path base, String pattern, int threads) throws IOException {
+		String[] parts = pattern.split("/", -1);
+		int fixed = 0;
+		while (fixed < parts.length - 1 && !isGlob(parts[fixed])) {
+			fixed++;
+		}
+
+		Path dir = base.resolve(pattern.startsWith("/") ? "/" : "");
+		for (int i = 0; i < fixed; i++) {
+			if (!parts[i].isEmpty()) {
+				dir = dir.resolve(parts[i]);
+			}
+		}
+
+		if (!Files.isDirectory(dir)) {
+			return new ArrayList<Path>();
+		}
+
+		String rest = String.join("/", Arrays.asList(parts).subList(fixed, parts.length));
+		int depth = rest.contains("**") ? Integer.MAX_VALUE : parts.length - fixed;
+		return walk(dir, new PathWalker(threads).include(rest).maxDepth(depth));
+	}
+}
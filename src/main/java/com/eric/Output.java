@@ -0,0 +1,327 @@
+package com.eric;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.DecimalFormatSymbols;
+import java.util.Formatter;
+
+/**
+ * The buffered writer behind Command.out(). Nothing reaches the underlying
+ * stream until a buffer fills up or the output is flushed, unless it was
+ * created with 'autoFlush', in which case every line is flushed.
+ * 
+ * Once a write to the target fails, the output counts as closed (usually
+ * because whatever was reading it, like head, went away) and every later
+ * write fails straight away instead of formatting lines no one will read.
+ * 
+ * Writes are synchronized, since lines are formatted in a shared buffer and
+ * out() can be called from any thread, so lines from different threads never
+ * get mixed up.
+ */
+final class Output implements Flushable {
+
+	private final Target target;
+	private final OutputStream stream;
+	private final Writer writer;
+	private final boolean autoFlush;
+	private final int bufferSize;
+	private final boolean closeTarget;
+	// lines are formatted here before being written, and the formatter is
+	// only used for the specifiers a Template can't append itself
+	private final StringBuilder line = new StringBuilder();
+	private final Formatter formatter = new Formatter(line);
+	private final boolean asciiDigits = DecimalFormatSymbols.getInstance(formatter.locale()).getZeroDigit() == '0';
+	private char[] chars = new char[256];
+
+	/**
+	 * @param async
+	 *            if true, the target is written to on a dedicated thread.
+	 * @param closeTarget
+	 *            if true, the target is closed along with the output.
+	 */
+	Output(OutputStream target, Charset charset, int bufferSize, boolean async, boolean autoFlush,
+			boolean closeTarget) {
+		this.target = new Target(target);
+		this.stream = async ? new AsyncOutputStream(this.target, bufferSize, 8, "output-writer")
+				: new BufferedOutputStream(this.target, bufferSize);
+		this.writer = new OutputStreamWriter(stream, charset);
+		this.autoFlush = autoFlush;
+		this.bufferSize = bufferSize;
+		this.closeTarget = closeTarget;
+	}
+
+	Writer writer() {
+		return writer;
+	}
+
+	/**
+	 * @return true once a write to the target has failed.
+	 */
+	boolean isClosed() {
+		return target.failure != null;
+	}
+
+	/**
+	 * Writes the text followed by the line separator.
+	 */
+	synchronized void println(CharSequence text) {
+		try {
+			target.check();
+			writer.append(text).append(System.lineSeparator());
+			if (autoFlush) {
+				writer.flush();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Formats the line with a cached Template, followed by the line separator.
+	 */
+	synchronized void printf(String format, Object... args) {
+		if (target.failure != null) {
+			IOException e = target.failed();
+			throw new UncheckedIOException(e.getMessage(), e);
+		}
+
+		line.setLength(0);
+		Template.of(format).format(line, formatter, asciiDigits, args);
+		line.append(System.lineSeparator());
+
+		int length = line.length();
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+
+		line.getChars(0, length, chars, 0);
+
+		try {
+			writer.write(chars, 0, length);
+			if (autoFlush) {
+				writer.flush();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Writes already formatted text, which may span many lines.
+	 */
+	synchronized void print(CharSequence text) throws IOException {
+		target.check();
+		writer.append(text);
+		if (autoFlush) {
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Writes bytes as they are, after any text written before them.
+	 */
+	synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+		target.check();
+		writer.flush();
+		stream.write(bytes, offset, length);
+		if (autoFlush) {
+			stream.flush();
+		}
+	}
+
+	/**
+	 * Copies up to 'count' bytes of the file, starting at 'position', after
+	 * everything written so far. When the target is a file descriptor, the
+	 * kernel moves the bytes without them ever being copied into the JVM.
+	 * 
+	 * @return the number of bytes copied.
+	 */
+	synchronized long transfer(FileChannel source, long position, long count) throws IOException {
+		flush();
+		WritableByteChannel sink = target.channel();
+		long done = 0;
+
+		try {
+			while (done < count) {
+				long n = source.transferTo(position + done, count - done, sink);
+				if (n <= 0) {
+					break;
+				}
+
+				done += n;
+			}
+		} catch (IOException e) {
+			throw target.fail(e);
+		}
+
+		return done;
+	}
+
+	/**
+	 * Copies up to 'count' bytes of the channel after everything written so
+	 * far, through a single direct buffer. Nothing more than 'count' bytes is
+	 * read from the source.
+	 * 
+	 * @return the number of bytes copied.
+	 */
+	synchronized long transfer(ReadableByteChannel source, long count) throws IOException {
+		flush();
+		WritableByteChannel sink = target.channel();
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(bufferSize, count));
+		long done = 0;
+
+		while (done < count) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), count - done));
+
+			int n = source.read(buffer);
+			if (n < 0) {
+				break;
+			}
+
+			buffer.flip();
+			try {
+				while (buffer.hasRemaining()) {
+					sink.write(buffer);
+				}
+			} catch (IOException e) {
+				throw target.fail(e);
+			}
+
+			done += n;
+		}
+
+		return done;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		writer.flush();
+	}
+
+	/**
+	 * Flushes everything and stops the writer thread, if there is one. The
+	 * target stream is left open, unless it belongs to the output.
+	 */
+	synchronized void close() throws IOException {
+		try {
+			writer.flush();
+		} finally {
+			try {
+				if (stream instanceof AsyncOutputStream) {
+					stream.close();
+				}
+			} finally {
+				if (closeTarget) {
+					target.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remembers when writing to the target fails. A PrintStream never throws,
+	 * so its error flag is checked after every write instead.
+	 */
+	private static final class Target extends FilterOutputStream {
+
+		volatile IOException failure;
+		private WritableByteChannel channel;
+
+		Target(OutputStream out) {
+			super(out);
+		}
+
+		/**
+		 * @return the file descriptor's own channel when writing to one,
+		 *         otherwise a channel that writes through this stream.
+		 */
+		WritableByteChannel channel() throws IOException {
+			check();
+			if (channel == null) {
+				channel = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel()
+						: Channels.newChannel(this);
+			}
+
+			return channel;
+		}
+
+		IOException fail(IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+
+			return e;
+		}
+
+		/**
+		 * @return an exception for writing after a failure, with the same
+		 *         message.
+		 */
+		IOException failed() {
+			return new IOException(failure.getMessage(), failure);
+		}
+
+		void check() throws IOException {
+			if (failure != null) {
+				throw failed();
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			check();
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				throw fail(e);
+			}
+			checkError();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			check();
+			try {
+				out.flush();
+			} catch (IOException e) {
+				throw fail(e);
+			}
+			checkError();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				out.close();
+			}
+		}
+
+		private void checkError() throws IOException {
+			if (out instanceof PrintStream && ((PrintStream) out).checkError()) {
+				throw fail(new IOException("Broken pipe"));
+			}
+		}
+	}
+}
@@ -0,0 +1,494 @@
+package com.eric;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a gzip file made of many members, like those written by bgzip
+ * or by concatenating gzip files, decompressing members in parallel.
+ *
+ * The file is cut into chunks. Each chunk starts at the first thing after its
+ * cut that looks like a member header, and is decompressed up to the end of
+ * the first member that reaches the next cut. Compressed data can look like a
+ * header too, so a chunk is only used if it starts exactly where the data
+ * before it ended. Anything else is decompressed on the reading thread as it
+ * is read, which is no slower than GZIPInputStream.
+ *
+ * The reading thread starts on the first chunk itself. A chunk stops once it
+ * holds MAX_PIECE bytes, and the reading thread carries on from there, so
+ * nothing is decompressed twice and the memory held is bounded. Chunks the
+ * reading thread got past while decompressing give up, and no more are
+ * started behind it, so a file that is a single member costs little more
+ * than reading it with GZIPInputStream.
+ */
+final class ParallelGzipInputStream extends InputStream {
+
+	static final int CHUNK_SIZE = 1 << 21;
+
+	// a chunk decompressing to more than this leaves the rest to the reading
+	// thread, which doesn't have to hold it all in memory
+	private static final int MAX_PIECE = CHUNK_SIZE * 8;
+
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private final FileChannel channel;
+	private final boolean closeChannel;
+	private final int threads;
+	private final long start;
+	private final long end;
+	private final ForkJoinPool pool;
+	private final Deque<CompletableFuture<Piece>> pending = new ArrayDeque<CompletableFuture<Piece>>();
+
+	// where the next chunk to submit starts, before looking for a header
+	private long nextChunk;
+	// where the data handed out so far ends in the file
+	private long expected;
+	// how far the reading thread has decompressed, for chunks to give up once
+	// it is past where they start
+	private volatile long reached;
+
+	private Piece piece;
+	private Piece held;
+	private Members inline;
+
+	ParallelGzipInputStream(FileChannel channel, boolean closeChannel, int threads) throws IOException {
+		this.channel = channel;
+		this.closeChannel = closeChannel;
+		this.threads = threads;
+		this.start = channel.position();
+		this.end = channel.size();
+		this.expected = start;
+		this.reached = start;
+		this.pool = new ForkJoinPool(threads);
+
+		this.nextChunk = Math.min(end, start + CHUNK_SIZE);
+		this.inline = inline(new Members(start, nextChunk, true));
+		submit();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		while (true) {
+			if (inline != null) {
+				int n = inline.read(b, off, len);
+				if (n >= 0) {
+					return n;
+				}
+
+				expected = inline.trailing ? end : inline.pos;
+				inline = null;
+			} else if (piece != null && piece.offset < piece.length) {
+				int n = Math.min(len, piece.length - piece.offset);
+				System.arraycopy(piece.data, piece.offset, b, off, n);
+				piece.offset += n;
+				return n;
+			} else if (!advance()) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Decides where the data after 'expected' comes from: the next chunk if
+	 * it starts right there, otherwise decompressing here up to where it can
+	 * be used.
+	 *
+	 * @return false at the end of the data.
+	 */
+	private boolean advance() throws IOException {
+		if (piece != null && piece.rest != null) {
+			// the chunk stopped part way, carry on from there
+			inline = inline(piece.rest);
+			piece = null;
+			return true;
+		}
+
+		piece = null;
+
+		while (true) {
+			Piece chunk = held != null ? held : take();
+			held = null;
+
+			if (chunk == null) {
+				if (expected < end) {
+					inline = inline(new Members(expected, end, expected == start));
+					return true;
+				}
+
+				return false;
+			} else if (chunk.start == expected) {
+				piece = chunk;
+				if (chunk.rest == null) {
+					expected = chunk.end;
+					reached = chunk.end;
+				}
+
+				return true;
+			} else if (chunk.start > expected) {
+				held = chunk;
+				inline = inline(new Members(expected, chunk.start, expected == start));
+				return true;
+			}
+
+			chunk.discard();
+			if (chunk.until > expected) {
+				// the chunk failed, or started inside data already read
+				inline = inline(new Members(expected, chunk.until, expected == start));
+				return true;
+			}
+		}
+	}
+
+	private Members inline(Members members) {
+		members.inline = true;
+		return members;
+	}
+
+	/**
+	 * @return the next chunk in file order, once it is done, or null when
+	 *         there are no more.
+	 */
+	private Piece take() {
+		submit();
+		return pending.isEmpty() ? null : pending.remove().join();
+	}
+
+	private void submit() {
+		// there is no point starting chunks the reading thread is already past
+		if (nextChunk + CHUNK_SIZE <= expected) {
+			nextChunk += (expected - nextChunk) / CHUNK_SIZE * CHUNK_SIZE;
+		}
+
+		while (pending.size() <= threads && nextChunk < end) {
+			long from = nextChunk;
+			long until = Math.min(end, from + CHUNK_SIZE);
+			pending.add(CompletableFuture.supplyAsync(() -> chunk(from, until), pool));
+			nextChunk = until;
+		}
+	}
+
+	private Piece chunk(long from, long until) {
+		Members members = null;
+		try {
+			if (until <= reached) {
+				return Piece.failed(until);
+			}
+
+			members = new Members(findHeader(from, until), until, true);
+			if (members.pos < 0) {
+				return Piece.failed(until);
+			}
+
+			byte[] data = new byte[CHUNK_SIZE];
+			int length = 0;
+			while (true) {
+				if (members.from < reached) {
+					return Piece.failed(until);
+				}
+
+				if (length == data.length) {
+					if (length >= MAX_PIECE) {
+						Piece partial = new Piece(members.from, -1, until, data, length, members);
+						members = null;
+						return partial;
+					}
+
+					data = Arrays.copyOf(data, length * 2);
+				}
+
+				int n = members.read(data, length, data.length - length);
+				if (n < 0) {
+					return new Piece(members.from, members.pos, until, data, length, null);
+				}
+
+				length += n;
+			}
+		} catch (IOException | RuntimeException e) {
+			// most likely something that only looked like a header
+			return Piece.failed(until);
+		} finally {
+			if (members != null) {
+				members.end();
+			}
+		}
+	}
+
+	/**
+	 * @return the position of the first possible member header in the range,
+	 *         or -1.
+	 */
+	private long findHeader(long from, long until) throws IOException {
+		Compressed in = new Compressed();
+		for (long p = from; p < until && p + 10 <= end; p++) {
+			if (in.at(p) == 0x1f && in.at(p + 1) == 0x8b && in.at(p + 2) == 8 && (in.at(p + 3) & 0xe0) == 0) {
+				return p;
+			}
+		}
+
+		return -1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// chunks still running give up
+		reached = end;
+
+		for (CompletableFuture<Piece> f : pending) {
+			f.cancel(false);
+			Piece done = f.isCancelled() ? null : f.getNow(null);
+			if (done != null) {
+				done.discard();
+			}
+		}
+
+		for (Piece p : new Piece[] { piece, held }) {
+			if (p != null) {
+				p.discard();
+			}
+		}
+
+		if (inline != null) {
+			inline.end();
+		}
+
+		pool.shutdownNow();
+
+		if (closeChannel) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * The decompressed data of the members in file[start, end).
+	 */
+	private static final class Piece {
+		final long start;
+		final long end;
+		// the cut the chunk was decompressed up to
+		final long until;
+		final byte[] data;
+		final int length;
+		// where to carry on from, when the chunk stopped at MAX_PIECE
+		final Members rest;
+		int offset;
+
+		Piece(long start, long end, long until, byte[] data, int length, Members rest) {
+			this.start = start;
+			this.end = end;
+			this.until = until;
+			this.data = data;
+			this.length = length;
+			this.rest = rest;
+		}
+
+		static Piece failed(long until) {
+			return new Piece(-1, -1, until, null, 0, null);
+		}
+
+		void discard() {
+			if (rest != null) {
+				rest.end();
+			}
+		}
+	}
+
+	/**
+	 * Reads the file at any position through a buffer, without moving the
+	 * channel, so any number of threads can share it.
+	 */
+	private final class Compressed {
+		final byte[] bytes = new byte[1 << 18];
+		long from;
+		int length;
+
+		int at(long p) throws IOException {
+			if (p < from || p >= from + length) {
+				fill(p);
+			}
+
+			return bytes[(int) (p - from)] & 0xff;
+		}
+
+		void fill(long p) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining() && channel.read(buffer, p + buffer.position()) >= 0) {
+				// keep reading
+			}
+
+			from = p;
+			length = buffer.position();
+			if (length == 0) {
+				throw new EOFException("Unexpected end of ZLIB input stream");
+			}
+		}
+	}
+
+	/**
+	 * Decompresses the members starting at 'from', one after the other, until
+	 * one ends at or after 'until'.
+	 */
+	private final class Members {
+		final long from;
+		final long until;
+		// once past the first member, something that isn't a header is taken
+		// to be trailing garbage, as GZIPInputStream does
+		private boolean strict;
+		boolean trailing;
+		// whether this is the reading thread's, which chunks have to get out
+		// of the way of
+		boolean inline;
+		long pos;
+
+		private final Compressed in = new Compressed();
+		private final Inflater inflater = new Inflater(true);
+		private final CRC32 crc = new CRC32();
+		private boolean inMember;
+		private long size;
+
+		Members(long from, long until, boolean strict) {
+			this.from = from;
+			this.until = until;
+			this.strict = strict;
+			this.pos = from;
+		}
+
+		/**
+		 * @return the number of bytes decompressed, or -1 once a member ends
+		 *         at or after 'until'.
+		 */
+		int read(byte[] b, int off, int len) throws IOException {
+			try {
+				while (true) {
+					if (!inMember) {
+						if (pos >= until || pos >= end) {
+							end();
+							return -1;
+						}
+
+						if (!header()) {
+							if (strict) {
+								throw new ZipException("Not in GZIP format");
+							}
+
+							trailing = true;
+							end();
+							return -1;
+						}
+
+						strict = false;
+					}
+
+					if (inflater.needsInput()) {
+						if (pos >= end) {
+							throw new EOFException("Unexpected end of ZLIB input stream");
+						}
+
+						if (inline) {
+							reached = pos;
+						}
+
+						in.at(pos);
+						int offset = (int) (pos - in.from);
+						inflater.setInput(in.bytes, offset, in.length - offset);
+						pos += in.length - offset;
+					}
+
+					int n = inflater.inflate(b, off, len);
+					if (n > 0) {
+						crc.update(b, off, n);
+						size += n;
+						return n;
+					} else if (inflater.finished()) {
+						trailer();
+					} else if (inflater.needsDictionary()) {
+						throw new ZipException("Deflate dictionaries aren't supported");
+					}
+				}
+			} catch (DataFormatException e) {
+				throw new ZipException(e.getMessage());
+			}
+		}
+
+		void end() {
+			inflater.end();
+		}
+
+		private boolean header() throws IOException {
+			if (pos + 10 > end || in.at(pos) != 0x1f || in.at(pos + 1) != 0x8b || in.at(pos + 2) != 8) {
+				return false;
+			}
+
+			int flags = in.at(pos + 3);
+			long p = pos + 10;
+			if ((flags & FEXTRA) != 0) {
+				p += 2 + (in.at(p) | in.at(p + 1) << 8);
+			}
+
+			if ((flags & FNAME) != 0) {
+				while (in.at(p++) != 0) {
+					// skip the name
+				}
+			}
+
+			if ((flags & FCOMMENT) != 0) {
+				while (in.at(p++) != 0) {
+					// skip the comment
+				}
+			}
+
+			if ((flags & FHCRC) != 0) {
+				p += 2;
+			}
+
+			pos = p;
+			inMember = true;
+			inflater.reset();
+			crc.reset();
+			size = 0;
+			return true;
+		}
+
+		private void trailer() throws IOException {
+			pos -= inflater.getRemaining();
+			if (pos + 8 > end) {
+				throw new EOFException("Unexpected end of ZLIB input stream");
+			}
+
+			if (int32(pos) != crc.getValue() || int32(pos + 4) != (size & 0xffffffffL)) {
+				throw new ZipException("Corrupt GZIP trailer");
+			}
+
+			pos += 8;
+			inMember = false;
+		}
+
+		private long int32(long p) throws IOException {
+			return (in.at(p) | in.at(p + 1) << 8 | in.at(p + 2) << 16 | (long) in.at(p + 3) << 24);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.eric;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Finds the files below a directory, listing directories on a fork-join pool
+ * so the walk isn't limited by how long each listing takes, which is what
+ * makes Files.walk slow on network file systems and huge trees. Ex:
+ *
+ * <pre>
+ * walker().include("*.log").exclude("archive").maxDepth(3).walk(dir, file -&gt; ...)
+ * </pre>
+ *
+ * Globs without a / are matched against file and directory names, others
+ * against the path relative to the directory being walked.
+ */
+public final class PathWalker {
+
+	private final int threads;
+	private final List<PathMatcher> includes = new ArrayList<PathMatcher>();
+	private final List<PathMatcher> excludes = new ArrayList<PathMatcher>();
+	private final List<Boolean> includeNames = new ArrayList<Boolean>();
+	private final List<Boolean> excludeNames = new ArrayList<Boolean>();
+	private int maxDepth = Integer.MAX_VALUE;
+	private boolean followLinks;
+
+	public PathWalker(int threads) {
+		this.threads = Math.max(threads, 1);
+	}
+
+	/**
+	 * Only files matching one of the globs are found. Directories are walked
+	 * whether they match or not.
+	 */
+	public PathWalker include(String... globs) {
+		for (String glob : globs) {
+			add(includes, includeNames, glob);
+			// like a shell with globstar, **/ can also match no directories
+			if (glob.startsWith("**/")) {
+				add(includes, includeNames, glob.substring(3));
+			}
+		}
+
+		return this;
+	}
+
+	/**
+	 * Files, and directories with everything below them, matching one of the
+	 * globs are skipped.
+	 */
+	public PathWalker exclude(String... globs) {
+		for (String glob : globs) {
+			add(excludes, excludeNames, glob);
+		}
+
+		return this;
+	}
+
+	private static void add(List<PathMatcher> matchers, List<Boolean> names, String glob) {
+		matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+		names.add(glob.indexOf('/') < 0);
+	}
+
+	/**
+	 * How far below the directory to look, counted like Files.walk does: 1 is
+	 * only the files directly in it, and 0 is only the directory itself, so
+	 * nothing is found.
+	 */
+	public PathWalker maxDepth(int maxDepth) {
+		if (maxDepth < 0) {
+			throw new IllegalArgumentException("maxDepth is negative: " + maxDepth);
+		}
+
+		this.maxDepth = maxDepth;
+		return this;
+	}
+
+	/**
+	 * If true, symbolic links are followed to the files and directories they
+	 * point to, each directory being walked once however many links lead to
+	 * it. Otherwise, links are skipped.
+	 */
+	public PathWalker followLinks(boolean followLinks) {
+		this.followLinks = followLinks;
+		return this;
+	}
+
+	/**
+	 * Hands every regular file found below the directory to the consumer as
+	 * soon as it is found, in no particular order. The consumer is only called
+	 * by one thread at a time. A directory that can't be listed, or an entry
+	 * that can't be looked at, doesn't stop the walk, but the first such
+	 * problem is thrown once it's done.
+	 */
+	public void walk(Path dir, Consumer<Path> consumer) throws IOException {
+		if (maxDepth == 0) {
+			// still fails like Files.walk if the directory isn't there
+			Files.readAttributes(dir, BasicFileAttributes.class);
+			return;
+		}
+
+		Walk walk = new Walk(dir, consumer);
+		if (!walk.visit(dir)) {
+			return;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(walk.new Directory(dir, 0));
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (walk.failure.get() != null) {
+			throw walk.failure.get();
+		}
+	}
+
+	/**
+	 * The state of one call to walk().
+	 */
+	private final class Walk {
+		final Path root;
+		final Consumer<Path> consumer;
+		final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+		// directories already walked, when following links
+		final Set<Object> visited = ConcurrentHashMap.newKeySet();
+
+		Walk(Path root, Consumer<Path> consumer) {
+			this.root = root;
+			this.consumer = consumer;
+		}
+
+		/**
+		 * @return false if the directory was already walked through another
+		 *         link.
+		 */
+		boolean visit(Path dir) throws IOException {
+			if (!followLinks) {
+				return true;
+			}
+
+			Object key = Files.readAttributes(dir, BasicFileAttributes.class).fileKey();
+			return key == null || visited.add(key);
+		}
+
+		void found(Path file) {
+			synchronized (consumer) {
+				consumer.accept(file);
+			}
+		}
+
+		private final class Directory extends RecursiveAction {
+
+			private static final long serialVersionUID = 1L;
+
+			private final Path dir;
+			private final int depth;
+
+			Directory(Path dir, int depth) {
+				this.dir = dir;
+				this.depth = depth;
+			}
+
+			@Override
+			protected void compute() {
+				List<Directory> below = new ArrayList<Directory>();
+
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+					for (Path entry : entries) {
+						if (!excluded(entry)) {
+							entry(entry, below);
+						}
+					}
+				} catch (IOException | DirectoryIteratorException e) {
+					failure.compareAndSet(null, e instanceof DirectoryIteratorException
+							? ((DirectoryIteratorException) e).getCause() : (IOException) e);
+				}
+
+				invokeAll(below);
+			}
+
+			/**
+			 * Hands the entry to the consumer or queues it to be walked. An
+			 * entry that can't be looked at, like one deleted since the
+			 * listing, is recorded as a failure without skipping the rest of
+			 * the directory.
+			 */
+			private void entry(Path entry, List<Directory> below) {
+				try {
+					BasicFileAttributes attributes = attributes(entry);
+					if (attributes == null) {
+						return;
+					}
+
+					if (attributes.isDirectory()) {
+						if (depth + 1 < maxDepth && visit(entry)) {
+							below.add(new Directory(entry, depth + 1));
+						}
+					} else if (attributes.isRegularFile() && included(entry)) {
+						found(entry);
+					}
+				} catch (IOException e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+
+			/**
+			 * @return null for links that aren't followed, or that lead
+			 *         nowhere.
+			 */
+			private BasicFileAttributes attributes(Path entry) throws IOException {
+				BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class,
+						LinkOption.NOFOLLOW_LINKS);
+
+				if (!attributes.isSymbolicLink()) {
+					return attributes;
+				} else if (!followLinks) {
+					return null;
+				}
+
+				try {
+					return Files.readAttributes(entry, BasicFileAttributes.class);
+				} catch (IOException e) {
+					return null;
+				}
+			}
+		}
+
+		private boolean excluded(Path entry) {
+			return matches(excludes, excludeNames, entry);
+		}
+
+		private boolean included(Path file) {
+			return includes.isEmpty() || matches(includes, includeNames, file);
+		}
+
+		private boolean matches(List<PathMatcher> matchers, List<Boolean> names, Path entry) {
+			for (int i = 0; i < matchers.size(); i++) {
+				Path p = names.get(i) ? entry.getFileName() : root.relativize(entry);
+				if (matchers.get(i).matches(p)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+	}
+}
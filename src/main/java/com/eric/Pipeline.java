@@ -0,0 +1,169 @@
+package com.eric;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs a LineFunction over chunks of input on a fork-join pool. Chunks always
+ * end on a line boundary and their results are written in input order: the
+ * futures for chunks in flight are queued as they are submitted, and the
+ * oldest one is waited for whenever the queue is full.
+ */
+final class Pipeline {
+
+	/**
+	 * Amount of input handed to a single task.
+	 */
+	static final int CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * Where the output of each chunk goes, in order.
+	 */
+	interface Sink {
+		void write(CharSequence chunk) throws IOException;
+	}
+
+	private final LineFunction function;
+	private final Sink sink;
+	private final int threads;
+
+	Pipeline(LineFunction function, Sink sink, int threads) {
+		this.function = function;
+		this.sink = sink;
+		this.threads = threads;
+	}
+
+	void run(FileChannel file) throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		Deque<CompletableFuture<CharSequence>> pending = new ArrayDeque<CompletableFuture<CharSequence>>();
+
+		try {
+			long end = file.size();
+			for (long pos = file.position(); pos < end;) {
+				ByteBuffer chunk = MappedLineReader.segment(file, pos, end, CHUNK_SIZE);
+				pos += chunk.limit();
+				submit(pool, pending, chunk);
+			}
+
+			file.position(end);
+			drain(pending, 0);
+		} finally {
+			shutdown(pool, pending);
+		}
+	}
+
+	void run(InputStream in) throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		Deque<CompletableFuture<CharSequence>> pending = new ArrayDeque<CompletableFuture<CharSequence>>();
+
+		try {
+			byte[] bytes = new byte[CHUNK_SIZE];
+			int limit = 0;
+			boolean eof = false;
+
+			while (!eof) {
+				int n = in.read(bytes, limit, bytes.length - limit);
+				if (n < 0) {
+					eof = true;
+				} else {
+					limit += n;
+					if (limit < bytes.length) {
+						continue;
+					}
+				}
+
+				int newline = eof ? limit - 1 : LineReader.lastIndexOfNewline(ByteBuffer.wrap(bytes), 0, limit);
+				if (newline < 0) {
+					// a single line bigger than the chunk, or an empty input
+					if (!eof) {
+						byte[] grown = new byte[bytes.length * 2];
+						System.arraycopy(bytes, 0, grown, 0, limit);
+						bytes = grown;
+					}
+
+					continue;
+				}
+
+				byte[] next = new byte[Math.max(CHUNK_SIZE, limit - newline - 1)];
+				System.arraycopy(bytes, newline + 1, next, 0, limit - newline - 1);
+				submit(pool, pending, ByteBuffer.wrap(bytes, 0, newline + 1).slice());
+
+				limit = limit - newline - 1;
+				bytes = next;
+			}
+
+			drain(pending, 0);
+		} finally {
+			shutdown(pool, pending);
+		}
+	}
+
+	private void submit(ForkJoinPool pool, Deque<CompletableFuture<CharSequence>> pending, ByteBuffer chunk)
+			throws Exception {
+		pending.add(CompletableFuture.supplyAsync(() -> apply(chunk), pool));
+		drain(pending, threads * 2);
+	}
+
+	/**
+	 * Writes completed chunks, in order, until no more than 'max' are in
+	 * flight.
+	 */
+	private void drain(Deque<CompletableFuture<CharSequence>> pending, int max) throws Exception {
+		while (pending.size() > max) {
+			try {
+				sink.write(pending.remove().join());
+			} catch (CompletionException e) {
+				// exit() from a function is an Error, and has to get through
+				if (e.getCause() instanceof Error) {
+					throw (Error) e.getCause();
+				}
+
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+	}
+
+	private void shutdown(ForkJoinPool pool, Deque<CompletableFuture<CharSequence>> pending) {
+		for (CompletableFuture<CharSequence> f : pending) {
+			f.cancel(false);
+		}
+
+		pool.shutdownNow();
+	}
+
+	private CharSequence apply(ByteBuffer chunk) {
+		StringBuilder out = new StringBuilder(chunk.limit());
+		Line line = new Line();
+
+		try {
+			for (int pos = 0; pos < chunk.limit();) {
+				int newline = LineReader.indexOfNewline(chunk, pos, chunk.limit());
+				if (newline < 0) {
+					line.set(chunk, pos, chunk.limit() - pos);
+					pos = chunk.limit();
+				} else {
+					LineReader.terminate(line, chunk, pos, newline);
+					pos = newline + 1;
+				}
+
+				CharSequence result = function.apply(line);
+				if (result != null) {
+					out.append(result).append(System.lineSeparator());
+				}
+			}
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+
+		return out;
+	}
+}
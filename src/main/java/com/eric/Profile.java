@@ -0,0 +1,159 @@
+package com.eric;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timestamps for the phases of Command.main(), plus the JVM's own counters,
+ * for the --profile option. Marking a phase only reads System.nanoTime(), so
+ * it is done whether or not profiling is on; the management beans aren't
+ * touched until a report is made.
+ */
+final class Profile {
+
+	private final List<String> phases = new ArrayList<String>();
+	private final List<Long> ends = new ArrayList<Long>();
+
+	// taken on the first report, so every format reports the same numbers
+	private Map<String, double[]> phaseTimes;
+	private Map<String, Number> counterValues;
+
+	Profile() {
+		mark("startup");
+	}
+
+	/**
+	 * Records that the named phase ended now, and the next one started.
+	 */
+	void mark(String phase) {
+		phases.add(phase);
+		ends.add(System.nanoTime());
+	}
+
+	/**
+	 * @return for each phase, when it started and how long it took, in
+	 *         milliseconds since JVM start. The first phase runs from JVM
+	 *         start until this profile was created.
+	 */
+	private Map<String, double[]> phases() {
+		long now = System.nanoTime();
+		double uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+		double created = uptime - (now - ends.get(0)) / 1e6;
+
+		Map<String, double[]> result = new LinkedHashMap<String, double[]>();
+		result.put(phases.get(0), new double[] { 0, created });
+		for (int i = 1; i < phases.size(); i++) {
+			double start = created + (ends.get(i - 1) - ends.get(0)) / 1e6;
+			result.put(phases.get(i), new double[] { start, (ends.get(i) - ends.get(i - 1)) / 1e6 });
+		}
+
+		result.put("total", new double[] { 0, uptime });
+		return result;
+	}
+
+	/**
+	 * @return the JVM's counters, in a stable order.
+	 */
+	private Map<String, Number> counters() {
+		Map<String, Number> result = new LinkedHashMap<String, Number>();
+
+		long gcCount = 0;
+		long gcTime = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(gc.getCollectionCount(), 0);
+			gcTime += Math.max(gc.getCollectionTime(), 0);
+		}
+
+		result.put("gcCount", gcCount);
+		result.put("gcTimeMillis", gcTime);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			long allocated = 0;
+			for (long bytes : ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+				allocated += Math.max(bytes, 0);
+			}
+
+			// threads that have already ended aren't counted
+			result.put("allocatedBytes", allocated);
+		}
+
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+
+		result.put("peakHeapBytes", peak);
+
+		ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+		result.put("loadedClasses", classes.getTotalLoadedClassCount());
+
+		if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean) {
+			result.put("cpuTimeMillis",
+					((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+							.getProcessCpuTime() / 1000000);
+		}
+
+		return result;
+	}
+
+	private void snapshot() {
+		if (phaseTimes == null) {
+			phaseTimes = phases();
+			counterValues = counters();
+		}
+	}
+
+	/**
+	 * @return a human readable report, one measurement per line.
+	 */
+	String report() {
+		snapshot();
+		StringBuilder sb = new StringBuilder(String.format("Profile:%n  %-16s %10s %10s", "phase", "start ms",
+				"ms"));
+		for (Map.Entry<String, double[]> e : phaseTimes.entrySet()) {
+			sb.append(String.format(Locale.ROOT, "%n  %-16s %10.3f %10.3f", e.getKey(), e.getValue()[0],
+					e.getValue()[1]));
+		}
+
+		for (Map.Entry<String, Number> e : counterValues.entrySet()) {
+			sb.append(String.format(Locale.ROOT, "%n  %-16s %21d", e.getKey(), e.getValue().longValue()));
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * @return the same report as a single JSON object.
+	 */
+	String json() {
+		snapshot();
+		StringBuilder sb = new StringBuilder("{\"phases\":{");
+		String separator = "";
+		for (Map.Entry<String, double[]> e : phaseTimes.entrySet()) {
+			sb.append(separator).append('"').append(e.getKey()).append("\":")
+					.append(String.format(Locale.ROOT, "{\"startMillis\":%.3f,\"millis\":%.3f}", e.getValue()[0],
+							e.getValue()[1]));
+			separator = ",";
+		}
+
+		sb.append('}');
+		for (Map.Entry<String, Number> e : counterValues.entrySet()) {
+			sb.append(",\"").append(e.getKey()).append("\":").append(e.getValue());
+		}
+
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,91 @@
+package com.eric;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads lines from an InputStream into a reusable byte buffer. The buffer
+ * grows when a single line doesn't fit, otherwise it is never reallocated.
+ */
+final class StreamLineReader extends LineReader {
+
+	private final InputStream in;
+
+	private byte[] bytes;
+	private ByteBuffer buffer;
+
+	// unread data lives in bytes[pos, limit), and bytes[pos, scanned) is known
+	// not to contain a newline
+	private int pos;
+	private int limit;
+	private int scanned;
+	private boolean eof;
+
+	StreamLineReader(InputStream in, int bufferSize) {
+		this.in = in;
+		this.bytes = new byte[bufferSize];
+		this.buffer = ByteBuffer.wrap(bytes);
+	}
+
+	@Override
+	Line next() throws IOException {
+		while (true) {
+			for (int i = scanned; i < limit; i++) {
+				if (bytes[i] == '\n') {
+					terminate(line, buffer, pos, i);
+					pos = scanned = i + 1;
+					return line;
+				}
+			}
+
+			scanned = limit;
+
+			if (eof) {
+				if (pos == limit) {
+					return null;
+				}
+
+				line.set(buffer, pos, limit - pos);
+				pos = scanned = limit;
+				return line;
+			}
+
+			fill();
+		}
+	}
+
+	/**
+	 * @return what has been read from the stream but not returned as a line
+	 *         yet. It is only valid until the next call to next().
+	 */
+	ByteBuffer unread() {
+		return ByteBuffer.wrap(bytes, pos, limit - pos);
+	}
+
+	private void fill() throws IOException {
+		if (pos > 0) {
+			System.arraycopy(bytes, pos, bytes, 0, limit - pos);
+			limit -= pos;
+			scanned -= pos;
+			pos = 0;
+		} else if (limit == bytes.length) {
+			byte[] grown = new byte[bytes.length * 2];
+			System.arraycopy(bytes, 0, grown, 0, limit);
+			bytes = grown;
+			buffer = ByteBuffer.wrap(bytes);
+		}
+
+		int n = in.read(bytes, limit, bytes.length - limit);
+		if (n < 0) {
+			eof = true;
+		} else {
+			limit += n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
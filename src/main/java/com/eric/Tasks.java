@@ -0,0 +1,217 @@
+package com.eric;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
+
+/**
+ * The tasks forked during one run of a command. I/O bound tasks each get a
+ * thread from a cached pool, CPU bound ones share a fixed pool. The first task
+ * to fail cancels all the others, and join() throws its exception.
+ */
+final class Tasks {
+
+	private final IntSupplier computeThreads;
+	private final ThreadGroup group = new ThreadGroup("tasks");
+	private final AtomicInteger count = new AtomicInteger();
+	// only the tasks that haven't stopped yet, each removes itself
+	private final Set<Task<?>> running = ConcurrentHashMap.newKeySet();
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	private ExecutorService io;
+	private ExecutorService compute;
+	private volatile boolean closed;
+
+	/**
+	 * @param computeThreads
+	 *            the size of the CPU bound pool, asked for when it is
+	 *            created, which may be after the arguments have been parsed.
+	 */
+	Tasks(IntSupplier computeThreads) {
+		this.computeThreads = computeThreads;
+	}
+
+	<T> Task<T> fork(Callable<T> task, boolean cpuBound) {
+		Task<T> future = new Task<T>(this, task);
+
+		ExecutorService pool = pool(cpuBound);
+		running.add(future);
+		try {
+			pool.execute(future);
+		} catch (RejectedExecutionException e) {
+			future.discard();
+			throw e;
+		}
+
+		return future;
+	}
+
+	private synchronized ExecutorService pool(boolean cpuBound) {
+		if (closed) {
+			throw new RejectedExecutionException("The command is exiting");
+		}
+
+		if (cpuBound) {
+			if (compute == null) {
+				compute = Executors.newFixedThreadPool(computeThreads.getAsInt(), r -> thread(r, "compute"));
+			}
+
+			return compute;
+		}
+
+		if (io == null) {
+			io = Executors.newCachedThreadPool(r -> thread(r, "io"));
+		}
+
+		return io;
+	}
+
+	private Thread thread(Runnable r, String kind) {
+		Thread t = new Thread(group, r, "task-" + kind + "-" + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+
+	private void fail(Throwable t, Task<?> failed) {
+		// once closed, tasks fail because they were interrupted, except for
+		// one calling exit(), which still has to be passed on
+		if (closed && !(t instanceof Exit)) {
+			return;
+		}
+
+		if (failure.compareAndSet(null, t)) {
+			for (Task<?> task : running) {
+				if (task != failed) {
+					task.cancel(true);
+				}
+			}
+		}
+	}
+
+	private void cancel() {
+		for (Task<?> t : running) {
+			t.cancel(true);
+		}
+	}
+
+	/**
+	 * Waits for every task forked so far, including ones forked while
+	 * waiting, and throws the first failure.
+	 */
+	void join() throws Exception {
+		while (!running.isEmpty()) {
+			for (Task<?> t : running) {
+				t.await();
+			}
+		}
+
+		rethrow();
+	}
+
+	/**
+	 * Throws the first failure, if a task failed.
+	 */
+	void rethrow() throws Exception {
+		Throwable t = failure.get();
+		if (t instanceof Error) {
+			throw (Error) t;
+		} else if (t != null) {
+			throw (Exception) t;
+		}
+	}
+
+	/**
+	 * Cancels whatever is still running and stops the pools, giving the tasks
+	 * a moment to react to being interrupted.
+	 */
+	void close() {
+		synchronized (this) {
+			closed = true;
+		}
+
+		cancel();
+
+		for (ExecutorService pool : new ExecutorService[] { io, compute }) {
+			if (pool != null) {
+				for (Runnable never : pool.shutdownNow()) {
+					((Task<?>) never).discard();
+				}
+			}
+		}
+
+		// a task calling exit() would only be waiting for itself
+		if (Thread.currentThread().getThreadGroup() == group) {
+			return;
+		}
+
+		try {
+			for (ExecutorService pool : new ExecutorService[] { io, compute }) {
+				if (pool != null) {
+					pool.awaitTermination(1, TimeUnit.SECONDS);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A future that can also be waited on until its task has actually stopped,
+	 * which get() doesn't do once it has been cancelled.
+	 */
+	static final class Task<T> extends FutureTask<T> {
+
+		private final Tasks owner;
+		private final CountDownLatch finished = new CountDownLatch(1);
+
+		Task(Tasks owner, Callable<T> callable) {
+			super(callable);
+			this.owner = owner;
+		}
+
+		@Override
+		protected void setException(Throwable t) {
+			// a cancelled task failing is most likely just it being interrupted
+			if (t instanceof Exit || !isCancelled()) {
+				owner.fail(t, this);
+			}
+
+			super.setException(t);
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				stopped();
+			}
+		}
+
+		void await() throws InterruptedException {
+			finished.await();
+		}
+
+		/**
+		 * For a task that will never be run.
+		 */
+		void discard() {
+			cancel(false);
+			stopped();
+		}
+
+		private void stopped() {
+			owner.running.remove(this);
+			finished.countDown();
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package com.eric;
+
+import java.util.ArrayList;
+import java.util.Formattable;
+import java.util.Formatter;
+import java.util.List;
+import java.util.MissingFormatArgumentException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A java.util.Formatter format string that has been parsed once, so formatting
+ * with it doesn't re-run the format regex every time. Plain %s and %d
+ * specifiers are appended directly, everything else is handed to a Formatter
+ * one specifier at a time. Templates are cached by format string.
+ */
+final class Template {
+
+	/**
+	 * Upper bound on the number of cached templates, so formats built at
+	 * runtime can't grow the cache forever.
+	 */
+	static final int CACHE_SIZE = 1024;
+
+	// same as the one java.util.Formatter uses
+	private static final Pattern SPECIFIER = Pattern
+			.compile("%(\\d+\\$)?([-#+ 0,(\\<]*)?(\\d+)?(\\.\\d+)?([tT])?([a-zA-Z%])");
+
+	private static final ConcurrentMap<String, Template> CACHE = new ConcurrentHashMap<String, Template>();
+
+	private static final int LITERAL = 0;
+	private static final int STRING = 1;
+	private static final int DECIMAL = 2;
+	private static final int OTHER = 3;
+	private static final int NO_ARGUMENT = 4;
+
+	private final String format;
+
+	// null when the format uses explicit argument indexes, in which case the
+	// whole thing goes to the Formatter
+	private final int[] kinds;
+	private final String[] parts;
+
+	private Template(String format) {
+		this.format = format;
+
+		List<Integer> kinds = new ArrayList<Integer>();
+		List<String> parts = new ArrayList<String>();
+		boolean simple = true;
+
+		Matcher m = SPECIFIER.matcher(format);
+		int pos = 0;
+		while (simple && pos < format.length()) {
+			int percent = format.indexOf('%', pos);
+			if (percent < 0) {
+				percent = format.length();
+			}
+
+			if (percent > pos) {
+				kinds.add(LITERAL);
+				parts.add(format.substring(pos, percent));
+			}
+
+			if (percent == format.length()) {
+				break;
+			}
+
+			if (!m.find(percent) || m.start() != percent || m.group(1) != null
+					|| (m.group(2) != null && m.group(2).indexOf('<') >= 0)) {
+				// let the Formatter deal with, and complain about, anything
+				// unusual
+				simple = false;
+				break;
+			}
+
+			String conversion = m.group(6);
+			boolean plain = (m.group(2) == null || m.group(2).isEmpty()) && m.group(3) == null && m.group(4) == null && m.group(5) == null;
+
+			if (conversion.equals("n") && plain) {
+				kinds.add(LITERAL);
+				parts.add(System.lineSeparator());
+			} else if (conversion.equals("%") && plain) {
+				kinds.add(LITERAL);
+				parts.add("%");
+			} else if (conversion.equals("n") || conversion.equals("%")) {
+				kinds.add(NO_ARGUMENT);
+				parts.add(m.group());
+			} else if (conversion.equals("s") && plain) {
+				kinds.add(STRING);
+				parts.add(m.group());
+			} else if (conversion.equals("d") && plain) {
+				kinds.add(DECIMAL);
+				parts.add(m.group());
+			} else {
+				kinds.add(OTHER);
+				parts.add(m.group());
+			}
+
+			pos = m.end();
+		}
+
+		if (simple) {
+			this.kinds = new int[kinds.size()];
+			for (int i = 0; i < this.kinds.length; i++) {
+				this.kinds[i] = kinds.get(i);
+			}
+
+			this.parts = parts.toArray(new String[parts.size()]);
+		} else {
+			this.kinds = null;
+			this.parts = null;
+		}
+	}
+
+	/**
+	 * @return the template for the format, from the cache if possible.
+	 */
+	static Template of(String format) {
+		Template t = CACHE.get(format);
+		if (t == null) {
+			t = new Template(format);
+			if (CACHE.size() < CACHE_SIZE) {
+				CACHE.putIfAbsent(format, t);
+			}
+		}
+
+		return t;
+	}
+
+	/**
+	 * Formats the template into 'out'. The formatter must write to 'out' as
+	 * well, and is only used for specifiers that aren't plain %s or %d.
+	 * 
+	 * @param asciiDigits
+	 *            whether the formatter's locale uses '0'-'9', which is what
+	 *            allows %d to be appended directly.
+	 */
+	void format(StringBuilder out, Formatter formatter, boolean asciiDigits, Object... args) {
+		if (kinds == null) {
+			formatter.format(format, args);
+			return;
+		}
+
+		int arg = 0;
+		for (int i = 0; i < kinds.length; i++) {
+			String part = parts[i];
+
+			switch (kinds[i]) {
+			case LITERAL:
+				out.append(part);
+				break;
+			case STRING:
+				Object s = argument(args, arg++, part);
+				if (s instanceof Formattable) {
+					formatter.format(part, s);
+				} else {
+					out.append(s);
+				}
+				break;
+			case DECIMAL:
+				Object d = argument(args, arg++, part);
+				if (asciiDigits && (d instanceof Integer || d instanceof Short || d instanceof Byte)) {
+					out.append(((Number) d).intValue());
+				} else if (asciiDigits && d instanceof Long) {
+					out.append(((Long) d).longValue());
+				} else {
+					formatter.format(part, d);
+				}
+				break;
+			case NO_ARGUMENT:
+				formatter.format(part);
+				break;
+			default:
+				formatter.format(part, argument(args, arg++, part));
+			}
+		}
+	}
+
+	/**
+	 * Formats the template into a new String, like String.format().
+	 */
+	static String format(String format, Object... args) {
+		StringBuilder sb = new StringBuilder();
+		Formatter formatter = new Formatter(sb);
+		of(format).format(sb, formatter, false, args);
+		return sb.toString();
+	}
+
+	private static Object argument(Object[] args, int index, String specifier) {
+		if (args == null) {
+			// String.format("%s", (Object[]) null) prints "null"
+			return null;
+		} else if (index < args.length) {
+			return args[index];
+		}
+
+		throw new MissingFormatArgumentException(specifier);
+	}
+}
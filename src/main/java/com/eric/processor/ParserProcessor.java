@@ -0,0 +1,444 @@
+package com.eric.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+
+import com.beust.jcommander.Parameter;
+
+/**
+ * Generates a {@link com.eric.CommandParser} for every concrete Command
+ * subclass being compiled, so that parsing its arguments doesn't need
+ * reflection at startup. The processor is registered as a service, so having
+ * this library on the compile classpath is enough to run it.
+ * 
+ * Only what Command.main() can do without JCommander is generated: options of
+ * type boolean, String, int, long, float, double, File, Path, enums and
+ * List&lt;String&gt;, and a List&lt;String&gt; main parameter, declared on
+ * fields the generated class can see. For anything else (converters,
+ * validators, variable arity, delegates, private fields, @Parameters on the
+ * class and so on) nothing is generated and the command keeps using
+ * JCommander.
+ */
+public class ParserProcessor extends AbstractProcessor {
+
+	private static final String COMMAND = "com.eric.Command";
+	private static final String SUFFIX = "$$Parser";
+
+	private static final Set<String> UNSUPPORTED_MEMBERS = new HashSet<String>(Arrays.asList("converter",
+			"listConverter", "validateWith", "validateValueWith", "splitter", "variableArity", "password"));
+
+	private enum Type {
+		SWITCH, BOOLEAN, STRING, INT, LONG, FLOAT, DOUBLE, FILE, PATH, ENUM, LIST
+	}
+
+	private static final class Option {
+		final VariableElement field;
+		final TypeElement owner;
+		final Parameter parameter;
+		final Type type;
+
+		Option(VariableElement field, TypeElement owner, Parameter parameter, Type type) {
+			this.field = field;
+			this.owner = owner;
+			this.parameter = parameter;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * Thrown when a command uses something the generated parser can't do.
+	 */
+	private static final class Unsupported extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		Unsupported(String message) {
+			super(message);
+		}
+	}
+
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		return Collections.singleton("*");
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env) {
+		TypeElement command = processingEnv.getElementUtils().getTypeElement(COMMAND);
+		if (command != null) {
+			for (Element e : env.getRootElements()) {
+				visit(e, command);
+			}
+		}
+
+		return false;
+	}
+
+	private void visit(Element e, TypeElement command) {
+		if (e.getKind() == ElementKind.CLASS && isCommand((TypeElement) e, command)) {
+			TypeElement type = (TypeElement) e;
+
+			try {
+				generate(type);
+			} catch (Unsupported u) {
+				processingEnv.getMessager().printMessage(Kind.NOTE,
+						"Not generating a parser, " + type + " will be parsed by JCommander: " + u.getMessage(), type);
+			} catch (IOException io) {
+				processingEnv.getMessager().printMessage(Kind.ERROR, "Unable to write parser: " + io, type);
+			}
+		}
+
+		for (Element enclosed : e.getEnclosedElements()) {
+			if (enclosed.getKind() == ElementKind.CLASS) {
+				visit(enclosed, command);
+			}
+		}
+	}
+
+	private boolean isCommand(TypeElement type, TypeElement command) {
+		return !type.equals(command) && !type.getModifiers().contains(Modifier.ABSTRACT)
+				&& processingEnv.getTypeUtils().isSubtype(processingEnv.getTypeUtils().erasure(type.asType()),
+						processingEnv.getTypeUtils().erasure(command.asType()));
+	}
+
+	private void generate(TypeElement type) throws Unsupported, IOException {
+		if (!type.getTypeParameters().isEmpty()) {
+			throw new Unsupported("it is generic");
+		}
+
+		for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+			if (e.getModifiers().contains(Modifier.PRIVATE)) {
+				throw new Unsupported("it is private");
+			}
+		}
+
+		String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+		List<Option> options = new ArrayList<Option>();
+		Option main = null;
+
+		for (TypeElement t = type; !t.getQualifiedName().contentEquals(COMMAND); t = superclass(t)) {
+			// separators, option prefixes and the like change how JCommander
+			// reads the arguments
+			for (AnnotationMirror a : t.getAnnotationMirrors()) {
+				if (a.getAnnotationType().toString().equals("com.beust.jcommander.Parameters")) {
+					throw new Unsupported(t + " uses @Parameters");
+				}
+			}
+
+			for (Element member : t.getEnclosedElements()) {
+				for (AnnotationMirror a : member.getAnnotationMirrors()) {
+					String name = a.getAnnotationType().toString();
+					if (name.equals("com.beust.jcommander.DynamicParameter")
+							|| name.equals("com.beust.jcommander.ParametersDelegate")) {
+						throw new Unsupported(member + " uses @" + a.getAnnotationType().asElement().getSimpleName());
+					}
+				}
+
+				Parameter parameter = member.getAnnotation(Parameter.class);
+				if (parameter == null) {
+					continue;
+				}
+
+				if (member.getKind() != ElementKind.FIELD) {
+					throw new Unsupported(member + " is not a field");
+				}
+
+				Option option = option((VariableElement) member, t, parameter, pkg);
+				if (parameter.names().length > 0) {
+					options.add(option);
+				} else if (main == null && option.type == Type.LIST) {
+					main = option;
+				} else {
+					throw new Unsupported("only a List<String> main parameter is supported");
+				}
+			}
+		}
+
+		write(type, pkg, options, main);
+	}
+
+	private TypeElement superclass(TypeElement type) {
+		return (TypeElement) processingEnv.getTypeUtils().asElement(type.getSuperclass());
+	}
+
+	private Option option(VariableElement field, TypeElement owner, Parameter parameter, String pkg)
+			throws Unsupported {
+		Set<Modifier> modifiers = field.getModifiers();
+		if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC)
+				|| modifiers.contains(Modifier.FINAL)) {
+			throw new Unsupported(field + " is private, static or final");
+		}
+
+		String ownerPkg = processingEnv.getElementUtils().getPackageOf(owner).getQualifiedName().toString();
+		if (!ownerPkg.equals(pkg) && !modifiers.contains(Modifier.PUBLIC)) {
+			throw new Unsupported(field + " is not visible from " + pkg);
+		}
+
+		for (AnnotationMirror a : field.getAnnotationMirrors()) {
+			if (a.getAnnotationType().toString().equals(Parameter.class.getName())) {
+				for (ExecutableElement member : a.getElementValues().keySet()) {
+					if (UNSUPPORTED_MEMBERS.contains(member.getSimpleName().toString())) {
+						throw new Unsupported(field + " sets " + member.getSimpleName());
+					}
+				}
+			}
+		}
+
+		Type type = type(field.asType());
+		int arity = parameter.arity();
+
+		if (type == Type.SWITCH && arity == 1) {
+			type = Type.BOOLEAN;
+		} else if (type == Type.SWITCH ? arity > 0 : arity != -1 && arity != 1) {
+			throw new Unsupported(field + " has an arity of " + arity);
+		}
+
+		return new Option(field, owner, parameter, type);
+	}
+
+	private Type type(TypeMirror mirror) throws Unsupported {
+		switch (mirror.getKind()) {
+		case BOOLEAN:
+			return Type.SWITCH;
+		case INT:
+			return Type.INT;
+		case LONG:
+			return Type.LONG;
+		case FLOAT:
+			return Type.FLOAT;
+		case DOUBLE:
+			return Type.DOUBLE;
+		case DECLARED:
+			break;
+		default:
+			throw new Unsupported("unsupported type " + mirror);
+		}
+
+		DeclaredType declared = (DeclaredType) mirror;
+		if (declared.asElement().getKind() == ElementKind.ENUM) {
+			return Type.ENUM;
+		}
+
+		String name = processingEnv.getTypeUtils().erasure(mirror).toString();
+		switch (name) {
+		case "java.lang.Boolean":
+			return Type.SWITCH;
+		case "java.lang.String":
+			return Type.STRING;
+		case "java.lang.Integer":
+			return Type.INT;
+		case "java.lang.Long":
+			return Type.LONG;
+		case "java.lang.Float":
+			return Type.FLOAT;
+		case "java.lang.Double":
+			return Type.DOUBLE;
+		case "java.io.File":
+			return Type.FILE;
+		case "java.nio.file.Path":
+			return Type.PATH;
+		case "java.util.List":
+			List<? extends TypeMirror> args = declared.getTypeArguments();
+			if (args.size() == 1 && args.get(0).getKind() == TypeKind.DECLARED
+					&& args.get(0).toString().equals("java.lang.String")) {
+				return Type.LIST;
+			}
+			break;
+		default:
+			break;
+		}
+
+		throw new Unsupported("unsupported type " + mirror);
+	}
+
+	private void write(TypeElement type, String pkg, List<Option> options, Option main) throws IOException {
+		String binary = processingEnv.getElementUtils().getBinaryName(type).toString();
+		String simple = (pkg.isEmpty() ? binary : binary.substring(pkg.length() + 1)) + SUFFIX;
+		String name = type.getQualifiedName().toString();
+
+		StringBuilder src = new StringBuilder();
+		if (!pkg.isEmpty()) {
+			src.append("package ").append(pkg).append(";\n\n");
+		}
+
+		src.append("/**\n");
+		src.append(" * Parses the options of ").append(name).append(" without reflection. Generated\n");
+		src.append(" * by ").append(getClass().getName()).append(" from its @Parameter annotations.\n");
+		src.append(" */\n");
+		src.append("public final class ").append(simple).append(" implements com.eric.CommandParser<").append(name)
+				.append("> {\n\n");
+
+		// option()
+		src.append("\t@Override\n");
+		src.append("\tpublic int option(").append(name)
+				.append(" cmd, String name, String[] args, int next, java.util.Set<String> seen) {\n");
+		src.append("\t\tswitch (name) {\n");
+		for (Option o : options) {
+			for (String n : o.parameter.names()) {
+				src.append("\t\tcase ").append(literal(n)).append(":\n");
+			}
+
+			String field = field(type, o);
+			String canonical = literal(o.parameter.names()[0]);
+			String value = "com.eric.CommandParser.value(name, args, next)";
+
+			switch (o.type) {
+			case SWITCH:
+				src.append("\t\t\t").append(field).append(" = true;\n");
+				break;
+			case BOOLEAN:
+				assign(src, field, "com.eric.CommandParser.toBoolean(name, " + value + ")");
+				break;
+			case STRING:
+				assign(src, field, value);
+				break;
+			case INT:
+				assign(src, field, "com.eric.CommandParser.toInt(name, " + value + ")");
+				break;
+			case LONG:
+				assign(src, field, "com.eric.CommandParser.toLong(name, " + value + ")");
+				break;
+			case FLOAT:
+				assign(src, field, "com.eric.CommandParser.toFloat(name, " + value + ")");
+				break;
+			case DOUBLE:
+				assign(src, field, "com.eric.CommandParser.toDouble(name, " + value + ")");
+				break;
+			case FILE:
+				assign(src, field, "new java.io.File(" + value + ")");
+				break;
+			case PATH:
+				assign(src, field, "java.nio.file.Paths.get(" + value + ")");
+				break;
+			case ENUM:
+				String enumType = processingEnv.getTypeUtils().erasure(o.field.asType()).toString();
+				assign(src, field, "com.eric.CommandParser.toEnum(" + enumType + ".class, name, " + value + ")");
+				break;
+			case LIST:
+				// like JCommander, the first use replaces any default value and
+				// values are split on commas
+				src.append("\t\t\tif (!seen.contains(").append(canonical).append(") || ").append(field)
+						.append(" == null) {\n");
+				src.append("\t\t\t\t").append(field).append(" = new java.util.ArrayList<String>();\n");
+				src.append("\t\t\t}\n");
+				src.append("\t\t\t").append(field).append(".addAll(java.util.Arrays.asList(").append(value)
+						.append(".split(\",\")));\n");
+				break;
+			}
+
+			src.append("\t\t\tseen.add(").append(canonical).append(");\n");
+			src.append("\t\t\treturn ").append(o.type == Type.SWITCH ? 0 : 1).append(";\n");
+		}
+
+		src.append("\t\tdefault:\n");
+		src.append("\t\t\treturn -1;\n");
+		src.append("\t\t}\n");
+		src.append("\t}\n\n");
+
+		// main()
+		src.append("\t@Override\n");
+		src.append("\tpublic void main(").append(name).append(" cmd, java.util.List<String> values) {\n");
+		if (main == null) {
+			src.append("\t\tif (!values.isEmpty()) {\n");
+			src.append("\t\t\tthrow new com.beust.jcommander.ParameterException(\"Was passed main parameter '\"\n");
+			src.append("\t\t\t\t\t+ values.get(0) + \"' but no main parameter was defined in your arg class\");\n");
+			src.append("\t\t}\n");
+		} else {
+			String field = field(type, main);
+			src.append("\t\tif (!values.isEmpty()) {\n");
+			src.append("\t\t\t").append(field).append(" = new java.util.ArrayList<String>(values);\n");
+			src.append("\t\t}\n");
+		}
+
+		src.append("\t}\n\n");
+
+		// missing()
+		src.append("\t@Override\n");
+		src.append("\tpublic String missing(").append(name).append(" cmd, java.util.Set<String> seen) {\n");
+		for (Option o : options) {
+			if (o.parameter.required()) {
+				src.append("\t\tif (!seen.contains(").append(literal(o.parameter.names()[0])).append(")) {\n");
+				src.append("\t\t\treturn ")
+						.append(literal("The following option is required: "
+								+ Arrays.toString(o.parameter.names()).replace(", ", " | ")))
+						.append(";\n");
+				src.append("\t\t}\n\n");
+			}
+		}
+
+		if (main != null && main.parameter.required()) {
+			src.append("\t\tif (").append(field(type, main)).append(" == null || ").append(field(type, main))
+					.append(".isEmpty()) {\n");
+			src.append("\t\t\treturn ")
+					.append(literal("Main parameters are required (\"" + main.parameter.description() + "\")"))
+					.append(";\n");
+			src.append("\t\t}\n\n");
+		}
+
+		src.append("\t\treturn null;\n");
+		src.append("\t}\n");
+		src.append("}\n");
+
+		String qualified = pkg.isEmpty() ? simple : pkg + "." + simple;
+		try (Writer w = processingEnv.getFiler().createSourceFile(qualified, type).openWriter()) {
+			w.write(src.toString());
+		}
+	}
+
+	private static void assign(StringBuilder src, String field, String value) {
+		src.append("\t\t\t").append(field).append(" = ").append(value).append(";\n");
+	}
+
+	/**
+	 * @return an expression for the option's field, cast to the class that
+	 *         declares it in case a subclass hides it.
+	 */
+	private static String field(TypeElement type, Option o) {
+		String name = o.field.getSimpleName().toString();
+		if (o.owner.equals(type)) {
+			return "cmd." + name;
+		}
+
+		return "((" + o.owner.getQualifiedName() + ") cmd)." + name;
+	}
+
+	private static String literal(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < ' ' || c > '~') {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+
+		return sb.append('"').toString();
+	}
+}
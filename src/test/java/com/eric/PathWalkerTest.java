@@ -0,0 +1,74 @@
+package com.eric;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+/**
+ * Walks a small tree and compares what is found to what Files.walk finds.
+ */
+public class PathWalkerTest {
+
+	@Test
+	public void maxDepthCountsLikeFilesWalk() throws IOException {
+		Path root = tree();
+
+		for (int depth = 0; depth <= 4; depth++) {
+			assertEquals("maxDepth " + depth, filesWalk(root, depth), walk(root, new PathWalker(2).maxDepth(depth)));
+		}
+	}
+
+	@Test
+	public void noMaxDepthFindsEverything() throws IOException {
+		Path root = tree();
+
+		assertEquals(filesWalk(root, Integer.MAX_VALUE), walk(root, new PathWalker(2)));
+	}
+
+	@Test(expected = NoSuchFileException.class)
+	public void maxDepthZeroStillNeedsTheDirectory() throws IOException {
+		Path root = tree();
+
+		new PathWalker(1).maxDepth(0).walk(root.resolve("missing"), file -> {
+		});
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeMaxDepth() {
+		new PathWalker(1).maxDepth(-1);
+	}
+
+	/**
+	 * a.txt, b/c.txt, b/d/e.txt and b/d/f/g.txt
+	 */
+	private static Path tree() throws IOException {
+		Path root = Files.createTempDirectory("walker");
+		Files.createDirectories(root.resolve("b/d/f"));
+		for (String file : new String[] { "a.txt", "b/c.txt", "b/d/e.txt", "b/d/f/g.txt" }) {
+			Files.createFile(root.resolve(file));
+		}
+
+		return root;
+	}
+
+	private static Set<Path> walk(Path root, PathWalker walker) throws IOException {
+		Set<Path> found = new TreeSet<Path>();
+		walker.walk(root, found::add);
+		return found;
+	}
+
+	private static Set<Path> filesWalk(Path root, int depth) throws IOException {
+		try (Stream<Path> paths = Files.walk(root, depth)) {
+			return paths.filter(Files::isRegularFile).collect(Collectors.toCollection(TreeSet::new));
+		}
+	}
+}
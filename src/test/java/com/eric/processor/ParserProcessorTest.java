@@ -0,0 +1,129 @@
+package com.eric.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.junit.Test;
+
+/**
+ * Compiles small commands with the processor and looks at what it generated.
+ */
+public class ParserProcessorTest {
+
+	private static final String BODY = "\t@Parameter(names = \"--name\")\n" //
+			+ "\tString name;\n\n" //
+			+ "\tpublic String getProgramName() {\n" //
+			+ "\t\treturn \"sample\";\n" //
+			+ "\t}\n\n" //
+			+ "\tprotected void run() {\n" //
+			+ "\t}\n" //
+			+ "}\n";
+
+	@Test
+	public void generatesParser() throws IOException {
+		Compilation c = compile("Sample", "public class Sample extends com.eric.Command {\n" + BODY);
+
+		assertTrue(c.generated("Sample$$Parser"));
+		assertTrue(c.source("Sample$$Parser").contains("case \"--name\":"));
+	}
+
+	@Test
+	public void classLevelParametersFallBackToJCommander() throws IOException {
+		Compilation c = compile("Sample",
+				"@Parameters(separators = \"=\")\npublic class Sample extends com.eric.Command {\n" + BODY);
+
+		assertFalse(c.generated("Sample$$Parser"));
+		assertTrue(c.notes.toString(), c.notes.contains("uses @Parameters"));
+	}
+
+	@Test
+	public void inheritedParametersFallBackToJCommander() throws IOException {
+		Compilation c = compile("Sample",
+				"public class Sample extends Base {\n" + BODY + "\n" //
+						+ "@Parameters(optionPrefixes = \"/\")\n" //
+						+ "abstract class Base extends com.eric.Command {\n" //
+						+ "}\n");
+
+		assertFalse(c.generated("Sample$$Parser"));
+	}
+
+	@Test
+	public void converterFallsBackToJCommander() throws IOException {
+		Compilation c = compile("Sample", "public class Sample extends com.eric.Command {\n" //
+				+ "\t@Parameter(names = \"--n\", converter = com.beust.jcommander.converters.IntegerConverter.class)\n" //
+				+ "\tInteger n;\n" //
+				+ BODY);
+
+		assertFalse(c.generated("Sample$$Parser"));
+	}
+
+	private static Compilation compile(String name, String body) throws IOException {
+		Path dir = Files.createTempDirectory("processor");
+		Path source = dir.resolve(name + ".java");
+		Files.write(source, ("import com.beust.jcommander.*;\n\n" + body).getBytes(StandardCharsets.UTF_8));
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		try (StandardJavaFileManager files = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+			String classpath = location(com.eric.Command.class) + File.pathSeparator
+					+ location(com.beust.jcommander.Parameter.class);
+			List<String> options = Arrays.asList("-proc:only", "-processor", ParserProcessor.class.getName(),
+					"-classpath", classpath, "-s", dir.toString());
+			boolean ok = compiler.getTask(null, files, diagnostics, options, null,
+					files.getJavaFileObjectsFromFiles(Collections.singleton(source.toFile()))).call();
+			assertEquals(diagnostics.getDiagnostics().toString(), true, ok);
+		}
+
+		StringBuilder notes = new StringBuilder();
+		for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+			notes.append(d.getMessage(null)).append('\n');
+		}
+
+		return new Compilation(dir, notes.toString());
+	}
+
+	private static String location(Class<?> c) {
+		try {
+			return Paths.get(c.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final class Compilation {
+		final Path dir;
+		final String notes;
+
+		Compilation(Path dir, String notes) {
+			this.dir = dir;
+			this.notes = notes;
+		}
+
+		boolean generated(String name) {
+			return Files.exists(dir.resolve(name + ".java"));
+		}
+
+		String source(String name) throws IOException {
+			return new String(Files.readAllBytes(dir.resolve(name + ".java")), StandardCharsets.UTF_8);
+		}
+	}
+}
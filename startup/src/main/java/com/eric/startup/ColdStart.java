@@ -0,0 +1,330 @@
+package com.eric.startup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.beust.jcommander.Parameter;
+import com.eric.Command;
+
+/**
+ * Measures cold starts: every run forks a fresh JVM (or launcher) and records
+ * the wall time until the process exits, the time until the first byte shows
+ * up on its stdout, and its peak RSS, the last VmHWM read from
+ * /proc/&lt;pid&gt;/status while it runs (on Linux, and Java 8 or a later one
+ * that lets it find the pid). Variants are whole command lines, split into
+ * arguments like a shell would, so arguments with spaces can be quoted, and
+ * the same command can be compared across JVM options, CDS archives, runtime
+ * images or parsers. Ex:
+ * 
+ * <pre>
+ * coldstart --runs 50 --variant "plain=java -cp 'lib/*' com.eric.startup.SampleCommand" \
+ *           --variant "cds=java -XX:SharedArchiveFile=app.jsa -cp 'lib/*' com.eric.startup.SampleCommand"
+ * </pre>
+ */
+public class ColdStart extends Command {
+
+	private static final double[] PERCENTILES = { 50, 90, 99 };
+
+	// how often the peak RSS of a running process is looked at
+	private static final long RSS_SAMPLE_MS = 5;
+
+	@Parameter(names = "--variant", description = "name=command line to run, split like sh would. Repeat to compare several.", required = true)
+	List<String> variants = new ArrayList<String>();
+
+	@Parameter(names = "--runs", description = "Measured runs per variant.")
+	int runs = 20;
+
+	@Parameter(names = "--warmup", description = "Unmeasured runs per variant, to warm the page cache.")
+	int warmup = 3;
+
+	@Parameter(names = "--json", description = "Also write the report to this file as JSON.")
+	String json;
+
+	public static void main(String[] args) {
+		Command.main(new ColdStart(), args);
+	}
+
+	@Override
+	protected String getProgramName() {
+		return "coldstart";
+	}
+
+	@Override
+	protected void validate(Collection<String> messages) {
+		for (String v : variants) {
+			if (v.indexOf('=') <= 0) {
+				messages.add("Variants look like name=command, not " + v);
+			} else {
+				try {
+					split(v.substring(v.indexOf('=') + 1));
+				} catch (IOException e) {
+					messages.add(e.getMessage());
+				}
+			}
+		}
+
+		if (runs < 1) {
+			messages.add("--runs has to be at least 1.");
+		}
+	}
+
+	@Override
+	protected void run() throws Exception {
+		Map<String, List<double[]>> results = new LinkedHashMap<String, List<double[]>>();
+
+		for (String variant : variants) {
+			String name = variant.substring(0, variant.indexOf('='));
+			List<String> command = split(variant.substring(variant.indexOf('=') + 1));
+			verbose("Running %s: %s", name, command);
+
+			for (int i = 0; i < warmup; i++) {
+				measure(command);
+			}
+
+			List<double[]> samples = new ArrayList<double[]>();
+			for (int i = 0; i < runs; i++) {
+				samples.add(measure(command));
+			}
+
+			results.put(name, samples);
+		}
+
+		report(results);
+	}
+
+	/**
+	 * @return wall ms, first byte ms and peak RSS kB (-1 if it can't be read).
+	 */
+	private double[] measure(List<String> command) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		Process p = new ProcessBuilder(command).start();
+		p.getOutputStream().close();
+
+		PeakRss rss = new PeakRss(p);
+		rss.start();
+
+		StringBuilder stderr = new StringBuilder();
+		Thread errors = new Thread(() -> drain(p.getErrorStream(), stderr));
+		errors.start();
+
+		double firstByte = -1;
+		InputStream out = p.getInputStream();
+		if (out.read() >= 0) {
+			firstByte = (System.nanoTime() - start) / 1e6;
+			byte[] buffer = new byte[8192];
+			while (out.read(buffer) >= 0) {
+				// only the timing matters
+			}
+		}
+
+		int code = p.waitFor();
+		double wall = (System.nanoTime() - start) / 1e6;
+		errors.join();
+		rss.join();
+
+		if (code != 0) {
+			throw new IOException(command + " exited with " + code + ": " + stderr);
+		}
+
+		return new double[] { wall, firstByte, rss.peak };
+	}
+
+	/**
+	 * Reads VmHWM from /proc/&lt;pid&gt;/status of a process until it exits.
+	 * VmHWM only grows, so the last value read is the peak, short of what the
+	 * process adds in its last few milliseconds. Launchers that exec their JVM
+	 * keep the pid, so those are measured too.
+	 */
+	private static final class PeakRss extends Thread {
+
+		private final Process process;
+		private final Path status;
+		volatile double peak = -1;
+
+		PeakRss(Process process) {
+			this.process = process;
+			long pid = pid(process);
+			this.status = pid < 0 ? null : Paths.get("/proc", Long.toString(pid), "status");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			if (status == null) {
+				return;
+			}
+
+			try {
+				while (process.isAlive()) {
+					sample();
+					Thread.sleep(RSS_SAMPLE_MS);
+				}
+			} catch (InterruptedException e) {
+				// keep what was read
+			}
+		}
+
+		private void sample() {
+			try {
+				for (String line : Files.readAllLines(status)) {
+					if (line.startsWith("VmHWM:")) {
+						peak = Double.parseDouble(line.replaceAll("[^0-9]", ""));
+					}
+				}
+			} catch (IOException e) {
+				// not on Linux, or it just exited
+			}
+		}
+	}
+
+	/**
+	 * @return the process id, or -1 if it can't be had. Process.pid() only
+	 *         came with Java 9, and before that it is a field of UNIXProcess.
+	 */
+	private static long pid(Process p) {
+		try {
+			return (Long) Process.class.getMethod("pid").invoke(p);
+		} catch (ReflectiveOperationException e) {
+			try {
+				Field pid = p.getClass().getDeclaredField("pid");
+				pid.setAccessible(true);
+				return pid.getInt(p);
+			} catch (ReflectiveOperationException | RuntimeException ex) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Splits a command line into arguments on unquoted whitespace, like
+	 * --batch lines are. Single quotes keep everything literally, double
+	 * quotes and backslashes work like in sh.
+	 */
+	static List<String> split(String line) throws IOException {
+		List<String> args = new ArrayList<String>();
+		StringBuilder arg = new StringBuilder();
+		boolean inArg = false;
+		char quote = 0;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+
+			if (quote == '\'') {
+				if (c == '\'') {
+					quote = 0;
+				} else {
+					arg.append(c);
+				}
+			} else if (c == '\\' && i + 1 < line.length()) {
+				arg.append(line.charAt(++i));
+				inArg = true;
+			} else if (quote == '"') {
+				if (c == '"') {
+					quote = 0;
+				} else {
+					arg.append(c);
+				}
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+				inArg = true;
+			} else if (Character.isWhitespace(c)) {
+				if (inArg) {
+					args.add(arg.toString());
+					arg.setLength(0);
+					inArg = false;
+				}
+			} else {
+				arg.append(c);
+				inArg = true;
+			}
+		}
+
+		if (quote != 0) {
+			throw new IOException("Unterminated quote in: " + line);
+		}
+
+		if (inArg) {
+			args.add(arg.toString());
+		}
+
+		return args;
+	}
+
+	private static void drain(InputStream in, StringBuilder sb) {
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+			for (String line = r.readLine(); line != null; line = r.readLine()) {
+				sb.append(line).append('\n');
+			}
+		} catch (IOException e) {
+			// the process is gone
+		}
+	}
+
+	private void report(Map<String, List<double[]>> results) throws IOException {
+		String[] metrics = { "wall ms", "first byte ms", "peak rss kB" };
+		StringBuilder js = new StringBuilder("{");
+
+		out("%-20s %-14s %10s %10s %10s %10s %10s", "variant", "metric", "min", "p50", "p90", "p99", "max");
+		for (Map.Entry<String, List<double[]>> e : results.entrySet()) {
+			if (js.length() > 1) {
+				js.append(',');
+			}
+
+			js.append('"').append(e.getKey()).append("\":{");
+			for (int m = 0; m < metrics.length; m++) {
+				List<Double> values = new ArrayList<Double>();
+				for (double[] sample : e.getValue()) {
+					if (sample[m] >= 0) {
+						values.add(sample[m]);
+					}
+				}
+
+				if (values.isEmpty()) {
+					continue;
+				}
+
+				Collections.sort(values);
+				double[] p = new double[PERCENTILES.length];
+				for (int i = 0; i < p.length; i++) {
+					p[i] = percentile(values, PERCENTILES[i]);
+				}
+
+				out("%-20s %-14s %10.1f %10.1f %10.1f %10.1f %10.1f", e.getKey(), metrics[m], values.get(0), p[0],
+						p[1], p[2], values.get(values.size() - 1));
+
+				js.append(m == 0 ? "" : ",").append('"').append(metrics[m]).append("\":")
+						.append(String.format(Locale.ROOT, "{\"min\":%.3f,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"max\":%.3f}",
+								values.get(0), p[0], p[1], p[2], values.get(values.size() - 1)));
+			}
+
+			js.append('}');
+		}
+
+		if (json != null) {
+			Files.write(Paths.get(getWorkingDirectory()).resolve(json),
+					js.append('}').toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Nearest rank percentile of sorted values.
+	 */
+	private static double percentile(List<Double> sorted, double percentile) {
+		int rank = (int) Math.ceil(percentile / 100 * sorted.size());
+		return sorted.get(Math.max(rank, 1) - 1);
+	}
+}
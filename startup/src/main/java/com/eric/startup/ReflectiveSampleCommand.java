@@ -0,0 +1,44 @@
+package com.eric.startup;
+
+import java.util.List;
+
+import com.beust.jcommander.Parameter;
+import com.eric.Command;
+
+/**
+ * The same as SampleCommand, but its options are private, so no parser is
+ * generated for it and JCommander parses them through reflection. Comparing
+ * the two shows what the generated parser saves.
+ */
+public class ReflectiveSampleCommand extends Command {
+
+	@Parameter(names = { "-n", "--name" }, description = "Who to greet.")
+	private String name = "world";
+
+	@Parameter(names = "--count", description = "How many lines to write.")
+	private int count = 100;
+
+	@Parameter(description = "Ignored")
+	private List<String> rest;
+
+	public static void main(String[] args) {
+		Command.main(new ReflectiveSampleCommand(), args);
+	}
+
+	@Override
+	protected String getProgramName() {
+		return "sample";
+	}
+
+	@Override
+	protected void run() throws Exception {
+		out("hello %s", name);
+		flush();
+
+		for (int i = 0; i < count; i++) {
+			out("%s %d", name, i);
+		}
+
+		flush();
+	}
+}
@@ -0,0 +1,43 @@
+package com.eric.startup;
+
+import java.util.List;
+
+import com.beust.jcommander.Parameter;
+import com.eric.Command;
+
+/**
+ * A small, typical command for the cold start harness to run. It writes one
+ * line as early as it can and then does a little work.
+ */
+public class SampleCommand extends Command {
+
+	@Parameter(names = { "-n", "--name" }, description = "Who to greet.")
+	String name = "world";
+
+	@Parameter(names = "--count", description = "How many lines to write.")
+	int count = 100;
+
+	@Parameter(description = "Ignored")
+	List<String> rest;
+
+	public static void main(String[] args) {
+		Command.main(new SampleCommand(), args);
+	}
+
+	@Override
+	protected String getProgramName() {
+		return "sample";
+	}
+
+	@Override
+	protected void run() throws Exception {
+		out("hello %s", name);
+		flush();
+
+		for (int i = 0; i < count; i++) {
+			out("%s %d", name, i);
+		}
+
+		flush();
+	}
+}